@@ -6,7 +6,8 @@ LOCAL_JAVA_LIBRARIES := telephony-common
 
 LOCAL_MODULE_TAGS := optional
 
-LOCAL_SRC_FILES := $(call all-java-files-under, src)
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+    $(call all-java-files-under, engine/src)
 
 LOCAL_PACKAGE_NAME := Babel
 LOCAL_CERTIFICATE := platform
@@ -0,0 +1,37 @@
+package org.cyanogenmod.babel.benchmark;
+
+import org.cyanogenmod.babel.engine.MessageStore;
+
+import java.util.ArrayList;
+
+/**
+ * Stands in for the sms provider. Buffers rows the way MessageBatch does
+ * and counts what would have been bulkInserts.
+ */
+public class FakeMessageStore implements MessageStore {
+    private final int batchSize;
+    private final ArrayList<Object[]> pending;
+    public int rows;
+    public int calls;
+
+    public FakeMessageStore(int batchSize) {
+        this.batchSize = batchSize;
+        pending = new ArrayList<Object[]>(batchSize);
+    }
+
+    @Override
+    public void add(String number, String text, int type, long date) {
+        pending.add(new Object[] { number, text, type, date, 1 });
+        if (pending.size() >= batchSize)
+            flush();
+    }
+
+    @Override
+    public void flush() {
+        if (pending.isEmpty())
+            return;
+        rows += pending.size();
+        calls++;
+        pending.clear();
+    }
+}
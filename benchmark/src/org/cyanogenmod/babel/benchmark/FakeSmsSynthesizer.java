@@ -0,0 +1,35 @@
+package org.cyanogenmod.babel.benchmark;
+
+import org.cyanogenmod.babel.engine.SmsSynthesizer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Stands in for the ISms binder. Groups by sender the way SynthesisBatch
+ * does and counts what would have been binder calls.
+ */
+public class FakeSmsSynthesizer implements SmsSynthesizer {
+    private final LinkedHashMap<String, ArrayList<String>> groups = new LinkedHashMap<String, ArrayList<String>>();
+    public int messages;
+    public int calls;
+
+    @Override
+    public void add(String address, String text, long date) {
+        ArrayList<String> group = groups.get(address);
+        if (group == null) {
+            group = new ArrayList<String>();
+            groups.put(address, group);
+        }
+        group.add(text);
+    }
+
+    @Override
+    public void flush() {
+        for (ArrayList<String> group: groups.values()) {
+            messages += group.size();
+            calls++;
+        }
+        groups.clear();
+    }
+}
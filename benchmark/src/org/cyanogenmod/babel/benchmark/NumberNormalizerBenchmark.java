@@ -0,0 +1,111 @@
+package org.cyanogenmod.babel.benchmark;
+
+import org.cyanogenmod.babel.engine.NumberNormalizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Number normalization on a realistic mix: a contact list where a few
+ * people get most of the texts (zipf, s=1.1), each number written the ways
+ * google voice and dialers write them. Compares the LRU cache against
+ * normalizing every time. Every lookup builds a fresh string, like one
+ * parsed out of a payload or an intent; baseline is just that cost.
+ * The cache hit rate is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumberNormalizerBenchmark {
+    private static final int LOOKUPS = 1 << 16;
+
+    @Param({ "50", "500", "5000" })
+    public int contacts;
+
+    @Param({ "64", "512" })
+    public int capacity;
+
+    private char[][] lookups;
+    private NumberNormalizer numbers;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        double[] cumulative = new double[contacts];
+        double total = 0;
+        for (int i = 0; i < contacts; i++) {
+            total += 1 / Math.pow(i + 1, 1.1);
+            cumulative[i] = total;
+        }
+
+        lookups = new char[LOOKUPS][];
+        for (int i = 0; i < LOOKUPS; i++) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            int contact = index < 0 ? -index - 1 : index;
+            lookups[i] = format(contact, random.nextInt(4)).toCharArray();
+        }
+        numbers = new NumberNormalizer(capacity);
+    }
+
+    private static String format(int contact, int style) {
+        String digits = String.format("%07d", contact);
+        String prefix = digits.substring(0, 3);
+        String line = digits.substring(3);
+        switch (style) {
+            case 0:
+                // google voice
+                return "+1555" + digits;
+            case 1:
+                return "(555) " + prefix + "-" + line;
+            case 2:
+                return "555-" + prefix + "-" + line;
+            default:
+                return "1 555 " + prefix + " " + line;
+        }
+    }
+
+    private String next() {
+        return new String(lookups[next++ & (LOOKUPS - 1)]);
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        long hits = numbers.getHits();
+        long lookups = hits + numbers.getMisses();
+        if (lookups > 0)
+            System.out.printf("%ncache hit rate: %.1f%% of %d lookups%n", hits * 100.0 / lookups, lookups);
+    }
+
+    @Benchmark
+    public String baseline() {
+        return next();
+    }
+
+    @Benchmark
+    public String cached() {
+        return numbers.normalize(next());
+    }
+
+    @Benchmark
+    public String uncached() {
+        return NumberNormalizer.toE164(next());
+    }
+}
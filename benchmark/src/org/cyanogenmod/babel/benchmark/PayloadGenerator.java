@@ -0,0 +1,90 @@
+package org.cyanogenmod.babel.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Builds synthetic /voice/request/messages payloads.
+ * Message dates run from BASE_DATE in DATE_STEP increments, spread randomly
+ * over the conversations, ascending within each conversation. Conversations
+ * are listed most recent first, like the server does. Every object carries
+ * a few fields sync doesn't use, so the parser has something to skip.
+ */
+public class PayloadGenerator {
+    public static final long BASE_DATE = 1373000000000L;
+    public static final long DATE_STEP = 1000;
+
+    // date of the nth message, 0 based
+    public static long date(int n) {
+        return BASE_DATE + n * DATE_STEP;
+    }
+
+    public static byte[] generate(int messages, int conversations, long seed) {
+        Random random = new Random(seed);
+        ArrayList<ArrayList<Integer>> threads = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < conversations; i++)
+            threads.add(new ArrayList<Integer>());
+        for (int i = 0; i < messages; i++)
+            threads.get(random.nextInt(conversations)).add(i);
+
+        // most recently active conversation first
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < conversations; i++)
+            order.add(i);
+        final ArrayList<ArrayList<Integer>> byThread = threads;
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return last(byThread.get(rhs)) - last(byThread.get(lhs));
+            }
+        });
+
+        StringBuilder json = new StringBuilder(messages * 200 + 64);
+        json.append("{\"totalSize\":").append(messages).append(",\"unreadCounts\":{\"all\":0,\"sms\":0},\"messageList\":[");
+        boolean firstConversation = true;
+        for (int c: order) {
+            ArrayList<Integer> children = threads.get(c);
+            if (children.isEmpty())
+                continue;
+            String number = number(c);
+            if (!firstConversation)
+                json.append(',');
+            firstConversation = false;
+            json.append("{\"id\":\"c").append(c)
+            .append("\",\"phoneNumber\":\"").append(number)
+            .append("\",\"displayNumber\":\"(555) 555-5555\",\"startTime\":\"").append(date(last(children)))
+            .append("\",\"isRead\":true,\"isSpam\":false,\"isTrash\":false,\"labels\":[\"sms\",\"all\",\"inbox\"],\"children\":[");
+            for (int i = 0; i < children.size(); i++) {
+                int n = children.get(i);
+                if (i > 0)
+                    json.append(',');
+                json.append("{\"id\":\"m").append(n)
+                .append("\",\"startTime\":\"").append(date(n))
+                .append("\",\"phoneNumber\":\"").append(number)
+                .append("\",\"displayStartDateTime\":\"7/5/13 1:00 PM\",\"message\":\"synthetic message number ").append(n)
+                .append("\",\"type\":").append(n % 3 == 0 ? 11 : 10)
+                .append(",\"fromName\":\"Benchmark\",\"labels\":[\"sms\"]}");
+            }
+            json.append("]}");
+        }
+        json.append("]}");
+
+        try {
+            return json.toString().getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public static String number(int conversation) {
+        return "+1555" + String.format("%07d", conversation);
+    }
+
+    private static int last(ArrayList<Integer> children) {
+        return children.isEmpty() ? -1 : children.get(children.size() - 1);
+    }
+}
@@ -0,0 +1,55 @@
+package org.cyanogenmod.babel.benchmark;
+
+import org.cyanogenmod.babel.engine.RecentSentIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Round trip dedupe under contention: send workers adding while
+ * the refresh thread matches echoes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RecentSentBenchmark {
+    private static final int NUMBERS = 16;
+
+    private RecentSentIndex index;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    @Setup
+    public void setup() {
+        index = new RecentSentIndex(64, TimeUnit.MINUTES.toMillis(30));
+    }
+
+    @Benchmark
+    public boolean addThenMatch() {
+        int n = sequence.incrementAndGet();
+        String number = PayloadGenerator.number(n % NUMBERS);
+        String text = "synthetic message number " + n;
+        index.add(number, text);
+        return index.remove(number, text);
+    }
+
+    @Benchmark
+    public boolean miss() {
+        int n = sequence.incrementAndGet();
+        return index.remove(PayloadGenerator.number(n % NUMBERS), "never sent");
+    }
+}
@@ -0,0 +1,142 @@
+package org.cyanogenmod.babel.benchmark;
+
+import org.cyanogenmod.babel.engine.Message;
+import org.cyanogenmod.babel.engine.MessageParser;
+import org.cyanogenmod.babel.engine.NumberNormalizer;
+import org.cyanogenmod.babel.engine.RecentSentIndex;
+import org.cyanogenmod.babel.engine.SyncProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The refreshMessages pipeline, stage by stage and end to end:
+ * parse with watermark filtering, merge into date order, recentSent dedupe,
+ * and dispatch to the message store and sms synthesizer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SyncBenchmark {
+    private static final int INSERT_BATCH = 100;
+    private static final int RECENT_SENT = 64;
+
+    private static final Comparator<Message> BY_DATE = new Comparator<Message>() {
+        @Override
+        public int compare(Message lhs, Message rhs) {
+            if (lhs.date == rhs.date)
+                return 0;
+            if (lhs.date > rhs.date)
+                return 1;
+            return -1;
+        }
+    };
+
+    @Param({ "100", "10000", "1000000" })
+    public int messages;
+
+    @Param({ "10", "1000" })
+    public int conversations;
+
+    // share of the messages that are newer than the watermark
+    @Param({ "0.01", "1.0" })
+    public double fresh;
+
+    private byte[] payload;
+    private long watermark;
+    private MessageParser.Result parsed;
+    private ArrayList<Message> outgoing;
+    // shared across invocations, like the one in the service
+    private final NumberNormalizer numbers = new NumberNormalizer(512);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        payload = PayloadGenerator.generate(messages, Math.min(conversations, messages), 42);
+        int old = (int)(messages * (1 - fresh));
+        watermark = old == 0 ? 0 : PayloadGenerator.date(old - 1);
+        parsed = parse();
+
+        // pretend the newest outgoing messages were sent from this phone
+        outgoing = new ArrayList<Message>();
+        for (Message message: SyncProcessor.merge(parsed)) {
+            if (message.type == Message.VOICE_OUTGOING_SMS)
+                outgoing.add(message);
+        }
+        if (outgoing.size() > RECENT_SENT)
+            outgoing = new ArrayList<Message>(outgoing.subList(outgoing.size() - RECENT_SENT, outgoing.size()));
+    }
+
+    private MessageParser.Result parse() throws IOException {
+        return MessageParser.parse(new InputStreamReader(new ByteArrayInputStream(payload), "UTF-8"), watermark);
+    }
+
+    @Benchmark
+    public MessageParser.Result parseOnly() throws IOException {
+        return parse();
+    }
+
+    // what refresh used to do: copy everything into one list and sort it
+    @Benchmark
+    public ArrayList<Message> flattenAndSort() {
+        ArrayList<Message> all = new ArrayList<Message>();
+        for (ArrayList<Message> conversation: parsed.conversations)
+            all.addAll(conversation);
+        Collections.sort(all, BY_DATE);
+        return all;
+    }
+
+    @Benchmark
+    public long merge() {
+        long sum = 0;
+        for (Message message: SyncProcessor.merge(parsed))
+            sum += message.date;
+        return sum;
+    }
+
+    @Benchmark
+    public int dispatch() {
+        return process(parsed);
+    }
+
+    // what the first sync parses: just the newest date and the conversations
+    @Benchmark
+    public MessageParser.Result firstSync() throws IOException {
+        return MessageParser.scan(new InputStreamReader(new ByteArrayInputStream(payload), "UTF-8"));
+    }
+
+    @Benchmark
+    public int refresh() throws IOException {
+        return process(parse());
+    }
+
+    private int process(MessageParser.Result result) {
+        RecentSentIndex recentSent = new RecentSentIndex(RECENT_SENT, TimeUnit.MINUTES.toMillis(30), numbers);
+        for (Message message: outgoing)
+            recentSent.add(message.phoneNumber, message.message);
+
+        FakeMessageStore store = new FakeMessageStore(INSERT_BATCH);
+        FakeSmsSynthesizer synthesizer = new FakeSmsSynthesizer();
+        new SyncProcessor(store, synthesizer, recentSent, numbers).process(result);
+        return store.rows + synthesizer.messages;
+    }
+}
@@ -0,0 +1,172 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes on a timer, as a fallback for when google voice notifications
+ * don't make it to the service: it isn't bound, or google voice didn't post one.
+ * Right after anything was sent or received it polls every minInterval, and
+ * each poll that finds nothing doubles the interval, up to maxInterval.
+ * Every wait is jittered by +/- 25% so accounts drift apart.
+ * While notifications are connected and one came in within the last pause ms,
+ * they are doing the job, and polls are skipped.
+ * Missed notifications are likeliest while the device sleeps, so the timer
+ * is an Alarm the platform supplies, which should wake it. The default is a
+ * thread, which doesn't, and is only good for testing.
+ */
+public class AdaptivePoller {
+    private final Runnable poll;
+    private final long minInterval;
+    private final long maxInterval;
+    private final long pause;
+    private final Random random = new Random();
+    private Alarm alarm;
+
+    private long interval;
+    private boolean scheduled;
+    private boolean stopped;
+    private long nextAt;
+    private boolean connected;
+    private long lastEvent = Long.MIN_VALUE / 2;
+    // a poll was triggered, and its refresh hasn't finished yet
+    private boolean polling;
+
+    private long polls;
+    private long hits;
+    private long skipped;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    public AdaptivePoller(Runnable poll, long minInterval, long maxInterval, long pause) {
+        this.poll = poll;
+        this.minInterval = minInterval;
+        this.maxInterval = Math.max(minInterval, maxInterval);
+        this.pause = pause;
+        interval = minInterval;
+    }
+
+    // a timer that doesn't stop in deep sleep. set it before start().
+    public synchronized void setAlarm(Alarm alarm) {
+        this.alarm = alarm;
+    }
+
+    // the default alarm: a thread that sleeps when the device does
+    private static class ThreadAlarm implements Alarm {
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BabelPoll");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        private Future<?> next;
+
+        @Override
+        public synchronized void set(long delay, Runnable task) {
+            if (next != null)
+                next.cancel(false);
+            next = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdownNow();
+        }
+    }
+
+    // wall clock, since nanoTime can stand still while the device sleeps,
+    // and a notification from before a long sleep isn't recent
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+    public synchronized void start() {
+        if (alarm == null)
+            alarm = new ThreadAlarm();
+        schedule(interval);
+    }
+
+    public synchronized void shutdown() {
+        stopped = true;
+        scheduled = false;
+        if (alarm != null)
+            alarm.shutdown();
+    }
+
+    // whether notifications can reach the service at all
+    public synchronized void setConnected(boolean connected) {
+        this.connected = connected;
+    }
+
+    // a notification asked for a refresh
+    public synchronized void onEvent() {
+        lastEvent = now();
+    }
+
+    // something was sent or received; replies tend to follow
+    public synchronized void onActivity() {
+        interval = minInterval;
+        if (scheduled && nextAt > now() + minInterval)
+            schedule(minInterval);
+    }
+
+    // a refresh finished, whatever triggered it
+    public void onRefreshed(boolean found) {
+        synchronized (this) {
+            if (polling) {
+                polling = false;
+                if (found)
+                    hits++;
+            }
+        }
+        if (found)
+            onActivity();
+    }
+
+    // must hold the lock
+    private void schedule(long delay) {
+        if (stopped)
+            return;
+        long jittered = (long)(delay * (0.75 + random.nextDouble() * 0.5));
+        alarm.set(jittered, tick);
+        nextAt = now() + jittered;
+        scheduled = true;
+    }
+
+    private void tick() {
+        boolean run;
+        synchronized (this) {
+            if (stopped)
+                return;
+            run = !connected || now() - lastEvent >= pause;
+            if (run) {
+                polls++;
+                polling = true;
+            }
+            else {
+                skipped++;
+            }
+            interval = Math.min(interval * 2, maxInterval);
+            schedule(interval);
+        }
+        if (run)
+            poll.run();
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("poller: interval=" + interval + "ms (" + minInterval + "-" + maxInterval + "ms) notifications " + (connected ? "connected" : "disconnected"));
+        writer.println("  polls=" + polls + " hits=" + hits + " hit rate=" + (polls == 0 ? 0 : hits * 100 / polls) + "% skipped=" + skipped);
+    }
+}
@@ -0,0 +1,15 @@
+package org.cyanogenmod.babel.engine;
+
+/**
+ * A one shot timer the platform provides, for things that have to happen
+ * even while the device sleeps. On a device that means an alarm that
+ * wakes it up; a plain thread stops with the cpu.
+ */
+public interface Alarm {
+    // run task once, delay ms from now, replacing whatever was set before.
+    // the device has to stay awake until task returns.
+    void set(long delay, Runnable task);
+
+    // cancel it for good
+    void shutdown();
+}
@@ -0,0 +1,12 @@
+package org.cyanogenmod.babel.engine;
+
+/**
+ * Google voice rejected the auth token.
+ */
+public class AuthException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public AuthException(int code) {
+        super("auth error: " + code);
+    }
+}
@@ -0,0 +1,181 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies the message history that predates the first sync into the message
+ * store, in the background, so live messages don't wait behind it.
+ * Walks the server's message list a page at a time, inserting at most
+ * rowsPerSecond rows. The position (page, and row within the page) is saved
+ * after every chunk, so a restart picks up close to where it left off.
+ * Only messages at or before the first sync's watermark are copied; anything
+ * newer is the refresh's job. Pages shift as conversations get new messages,
+ * so a resumed backfill may see a row twice or miss one that moved up into
+ * an already finished page.
+ */
+public class Backfill {
+    private static final Logger LOG = Logger.getLogger("Babel");
+
+    static final String UNTIL = "backfill_until";
+    static final String PAGE = "backfill_page";
+    static final String ROW = "backfill_row";
+
+    private final VoiceTransport transport;
+    private final Credentials credentials;
+    private final StateStore state;
+    private final MessageStore store;
+    private final NumberNormalizer numbers;
+    private final int rowsPerSecond;
+    private final long retryDelay;
+    private Thread thread;
+
+    final AtomicLong inserted = new AtomicLong();
+    final AtomicLong pages = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    private volatile int page;
+    private volatile boolean finished;
+
+    public Backfill(VoiceTransport transport, Credentials credentials, StateStore state, MessageStore store, NumberNormalizer numbers, int rowsPerSecond, long retryDelay) {
+        this.transport = transport;
+        this.credentials = credentials;
+        this.state = state;
+        this.store = store;
+        this.numbers = numbers;
+        this.rowsPerSecond = Math.max(1, rowsPerSecond);
+        this.retryDelay = retryDelay;
+    }
+
+    // cursor keys for a fresh backfill of everything up to until,
+    // to be saved along with the first sync's watermark.
+    static void begin(HashMap<String, String> updates, long until) {
+        updates.put(UNTIL, String.valueOf(until));
+        updates.put(PAGE, "1");
+        updates.put(ROW, "0");
+    }
+
+    // pick up a backfill that was saved but not finished
+    public synchronized void resume() {
+        if (isRunning() || state.get(UNTIL) == null)
+            return;
+        finished = false;
+        thread = new Thread("BabelBackfill") {
+            @Override
+            public void run() {
+                backfill();
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public synchronized void shutdown() {
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    public boolean isRunning() {
+        Thread t = thread;
+        return t != null && t.isAlive();
+    }
+
+    private void save(int page, int row) {
+        HashMap<String, String> updates = new HashMap<String, String>();
+        updates.put(PAGE, String.valueOf(page));
+        updates.put(ROW, String.valueOf(row));
+        state.put(updates);
+    }
+
+    private void backfill() {
+        long until = Long.parseLong(state.get(UNTIL));
+        String savedPage = state.get(PAGE);
+        String savedRow = state.get(ROW);
+        page = savedPage == null ? 1 : Integer.parseInt(savedPage);
+        int skip = savedRow == null ? 0 : Integer.parseInt(savedRow);
+        int chunk = Math.max(1, rowsPerSecond / 4);
+
+        while (!Thread.currentThread().isInterrupted()) {
+            String authToken = null;
+            try {
+                authToken = credentials.getAuthToken();
+                MessageParser.Result result;
+                InputStream in = transport.fetchPage(authToken, page);
+                try {
+                    result = MessageParser.parse(new InputStreamReader(in, "UTF-8"), 0);
+                }
+                finally {
+                    in.close();
+                }
+
+                // ran off the end of the history
+                if (result.seen.isEmpty()) {
+                    HashMap<String, String> updates = new HashMap<String, String>();
+                    updates.put(UNTIL, null);
+                    updates.put(PAGE, null);
+                    updates.put(ROW, null);
+                    state.put(updates);
+                    finished = true;
+                    LOG.info("backfill done: " + inserted.get() + " messages");
+                    return;
+                }
+
+                int row = 0;
+                int pending = 0;
+                long chunkStart = System.nanoTime();
+                for (Message message: new MessageMerger(result.conversations)) {
+                    if (row++ < skip)
+                        continue;
+                    int type = SyncProcessor.providerType(message);
+                    if (type == 0 || message.phoneNumber == null || message.message == null || message.date > until)
+                        continue;
+                    store.add(numbers.normalize(message.phoneNumber), message.message, type, message.date);
+                    if (++pending < chunk)
+                        continue;
+
+                    // write out the chunk, remember where we are and take a breather
+                    store.flush();
+                    inserted.addAndGet(pending);
+                    pending = 0;
+                    save(page, row);
+                    skip = row;
+                    long elapsed = (System.nanoTime() - chunkStart) / 1000000;
+                    Thread.sleep(Math.max(0, chunk * 1000L / rowsPerSecond - elapsed));
+                    chunkStart = System.nanoTime();
+                }
+                store.flush();
+                inserted.addAndGet(pending);
+                pages.incrementAndGet();
+                page++;
+                skip = 0;
+                save(page, 0);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            catch (Exception e) {
+                errors.incrementAndGet();
+                if (e instanceof AuthException)
+                    credentials.invalidateAuthToken(authToken);
+                LOG.log(Level.WARNING, "backfill error on page " + page + ", retrying", e);
+                try {
+                    Thread.sleep(retryDelay);
+                }
+                catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        String state = finished ? "done" : isRunning() ? "running" : "idle";
+        writer.println("backfill: " + state + " page=" + page + " rate=" + rowsPerSecond + "/s");
+        writer.println("  inserted=" + inserted.get() + " pages=" + pages.get() + " errors=" + errors.get());
+    }
+}
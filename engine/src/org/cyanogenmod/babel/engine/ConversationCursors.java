@@ -0,0 +1,117 @@
+package org.cyanogenmod.babel.engine;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per conversation sync state: the conversation's startTime as of the last
+ * sync, and a digest of its header. A conversation whose header still
+ * matches has nothing new in it, and refresh skips over it.
+ * Each cursor is a key of its own in the state store, next to a list of the
+ * conversation ids, so a refresh only saves the cursors that moved, and the
+ * list only when a conversation comes or goes.
+ */
+public class ConversationCursors implements MessageParser.ConversationFilter {
+    static final String IDS = "conversation_ids";
+    static final String PREFIX = "conversation_";
+    // every cursor in one value, "id startTime digest" lines, from before
+    // they had keys of their own. read once, and replaced on the next update.
+    static final String LEGACY = "conversations";
+
+    private static class Cursor {
+        final long startTime;
+        final long digest;
+
+        Cursor(long startTime, long digest) {
+            this.startTime = startTime;
+            this.digest = digest;
+        }
+    }
+
+    private HashMap<String, Cursor> cursors = new HashMap<String, Cursor>();
+    private boolean legacy;
+
+    public ConversationCursors(StateStore state) {
+        String ids = state.get(IDS);
+        if (ids != null) {
+            for (String id: ids.split(" ")) {
+                if (id.length() == 0)
+                    continue;
+                Cursor cursor = parse(state.get(PREFIX + id));
+                if (cursor != null)
+                    cursors.put(id, cursor);
+            }
+            return;
+        }
+
+        String saved = state.get(LEGACY);
+        if (saved == null)
+            return;
+        legacy = true;
+        for (String line: saved.split("\n")) {
+            int space = line.indexOf(' ');
+            if (space <= 0)
+                continue;
+            Cursor cursor = parse(line.substring(space + 1));
+            if (cursor != null)
+                cursors.put(line.substring(0, space), cursor);
+        }
+    }
+
+    // "startTime digest"
+    private static Cursor parse(String saved) {
+        if (saved == null)
+            return null;
+        String[] fields = saved.split(" ");
+        if (fields.length != 2)
+            return null;
+        try {
+            return new Cursor(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized boolean isUnchanged(String id, long startTime, long digest) {
+        Cursor cursor = cursors.get(id);
+        return cursor != null && cursor.startTime == startTime && cursor.digest == digest;
+    }
+
+    // remember the conversations from a completed sync, and put what
+    // needs saving into updates. conversations no longer on the server
+    // are forgotten.
+    public synchronized void update(List<MessageParser.Conversation> seen, Map<String, String> updates) {
+        HashMap<String, Cursor> updated = new HashMap<String, Cursor>(seen.size() * 2);
+        boolean listed = !legacy && seen.size() == cursors.size();
+        for (MessageParser.Conversation conversation: seen) {
+            Cursor cursor = cursors.get(conversation.id);
+            if (cursor == null)
+                listed = false;
+            if (legacy || cursor == null || cursor.startTime != conversation.startTime || cursor.digest != conversation.digest) {
+                cursor = new Cursor(conversation.startTime, conversation.digest);
+                updates.put(PREFIX + conversation.id, cursor.startTime + " " + cursor.digest);
+            }
+            updated.put(conversation.id, cursor);
+        }
+        if (listed) {
+            cursors = updated;
+            return;
+        }
+
+        for (String id: cursors.keySet()) {
+            if (!updated.containsKey(id))
+                updates.put(PREFIX + id, null);
+        }
+        StringBuilder ids = new StringBuilder(updated.size() * 20);
+        for (MessageParser.Conversation conversation: seen)
+            ids.append(conversation.id).append(' ');
+        updates.put(IDS, ids.toString());
+        if (legacy)
+            updates.put(LEGACY, null);
+        legacy = false;
+        cursors = updated;
+    }
+}
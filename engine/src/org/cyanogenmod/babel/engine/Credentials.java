@@ -0,0 +1,19 @@
+package org.cyanogenmod.babel.engine;
+
+/**
+ * The google voice account, its auth token and the _rnr_se routing token.
+ */
+public interface Credentials {
+    // null if no account is set up.
+    String getAccount();
+
+    String getAuthToken() throws Exception;
+
+    // the server rejected this token; get a new one next time.
+    void invalidateAuthToken(String authToken);
+
+    // null until fetched.
+    String getRnrSe();
+
+    void setRnrSe(String rnrse);
+}
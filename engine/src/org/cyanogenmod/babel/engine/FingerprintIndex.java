@@ -0,0 +1,349 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fingerprints (number, date, text hash) of every message that went into
+ * the message store or got synthesized, in a memory mapped file, so a sync
+ * that lost its watermark doesn't write the same history twice.
+ * The file is an open addressed hash table of 64 bit fingerprints:
+ * lookups and inserts are O(1) and touch a page or two, and writes reach the
+ * file through the page cache without any explicit I/O. The table doubles,
+ * into a new file, when it gets half full.
+ * Numbers are reduced to their digits and dates to the second, since the
+ * sms provider doesn't always keep either exactly as given.
+ * A missing or unreadable file is recreated empty, and should be rebuilt
+ * from the provider in one pass: startRebuild(), addExisting() for every
+ * row, finishRebuild(). Until the rebuild finishes, add() waits for it, so
+ * nothing gets inserted that the rebuild would have caught.
+ * The filters only record a message once the flush that wrote it returns.
+ * If the flush throws, or the process dies first, nothing is recorded, and
+ * the same messages get written when the sync comes around to them again.
+ */
+public class FingerprintIndex {
+    private static final Logger LOG = Logger.getLogger("Babel");
+
+    private static final int MAGIC = 0x42464958;
+    private static final int VERSION = 1;
+    // magic, version, capacity, count
+    private static final int HEADER = 16;
+    private static final int MIN_CAPACITY = 1 << 12;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File file;
+    private MappedByteBuffer table;
+    private int capacity;
+    private int count;
+    private boolean created;
+    private boolean rebuilding;
+
+    long hits;
+    long misses;
+
+    public FingerprintIndex(File file) throws IOException {
+        this.file = file;
+        if (file.exists() && open(file))
+            return;
+        map(file, MIN_CAPACITY);
+        created = true;
+    }
+
+    // true if the index started out empty, because the file was missing or bad.
+    // the caller should rebuild it.
+    public boolean isNew() {
+        return created;
+    }
+
+    public static long fingerprint(String number, long date, String text) {
+        long hash = FNV_OFFSET;
+        if (number != null) {
+            for (int i = 0; i < number.length(); i++) {
+                char c = number.charAt(i);
+                if (c < '0' || c > '9')
+                    continue;
+                hash ^= c;
+                hash *= FNV_PRIME;
+            }
+        }
+        long seconds = date / 1000;
+        for (int i = 0; i < 64; i += 8) {
+            hash ^= (seconds >>> i) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        if (text != null) {
+            for (int i = 0; i < text.length(); i++) {
+                hash ^= text.charAt(i);
+                hash *= FNV_PRIME;
+            }
+        }
+        // 0 marks an empty slot
+        return hash == 0 ? 1 : hash;
+    }
+
+    private boolean open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            if (length < HEADER)
+                return false;
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            int cap = buffer.getInt(8);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || cap < MIN_CAPACITY
+            || Integer.bitCount(cap) != 1 || length != HEADER + 8L * cap) {
+                LOG.warning("fingerprint index " + file + " is unreadable, starting over");
+                return false;
+            }
+            table = buffer;
+            capacity = cap;
+            count = buffer.getInt(12);
+            return true;
+        }
+        finally {
+            // the mapping outlives the file handle
+            raf.close();
+        }
+    }
+
+    private void map(File target, int cap) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(HEADER + 8L * cap);
+            table = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + 8L * cap);
+        }
+        finally {
+            raf.close();
+        }
+        table.putInt(0, MAGIC);
+        table.putInt(4, VERSION);
+        table.putInt(8, cap);
+        table.putInt(12, 0);
+        capacity = cap;
+        count = 0;
+    }
+
+    // slot holding the fingerprint, or the empty slot where it would go
+    private int find(long fingerprint) {
+        int mask = capacity - 1;
+        int slot = (int)(fingerprint ^ (fingerprint >>> 32)) & mask;
+        while (true) {
+            long value = table.getLong(HEADER + 8 * slot);
+            if (value == 0 || value == fingerprint)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public synchronized boolean contains(String number, long date, String text) {
+        long fingerprint = fingerprint(number, date, text);
+        return table.getLong(HEADER + 8 * find(fingerprint)) != 0;
+    }
+
+    // returns false if it was already there.
+    // waits for a rebuild in progress to finish first.
+    public synchronized boolean add(String number, long date, String text) {
+        long fingerprint = fingerprint(number, date, text);
+        if (!isMissing(fingerprint))
+            return false;
+        insert(fingerprint);
+        return true;
+    }
+
+    // must hold the lock
+    private boolean isMissing(long fingerprint) {
+        while (rebuilding) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        boolean missing = table.getLong(HEADER + 8 * find(fingerprint)) == 0;
+        if (missing)
+            misses++;
+        else
+            hits++;
+        return missing;
+    }
+
+    // fingerprints of messages handed to a store or synthesizer
+    // that hasn't flushed them yet
+    private class Pending {
+        private final HashSet<Long> fingerprints = new HashSet<Long>();
+
+        // false if the message is in the index or already pending
+        boolean add(String number, long date, String text) {
+            long fingerprint = fingerprint(number, date, text);
+            synchronized (FingerprintIndex.this) {
+                if (fingerprints.contains(fingerprint)) {
+                    hits++;
+                    return false;
+                }
+                if (!isMissing(fingerprint))
+                    return false;
+            }
+            fingerprints.add(fingerprint);
+            return true;
+        }
+
+        // everything pending made it out
+        void commit() {
+            synchronized (FingerprintIndex.this) {
+                for (long fingerprint: fingerprints)
+                    insert(fingerprint);
+            }
+            fingerprints.clear();
+        }
+
+        // a flush failed, and took everything pending with it
+        void discard() {
+            fingerprints.clear();
+        }
+    }
+
+    private boolean insert(long fingerprint) {
+        int slot = find(fingerprint);
+        if (table.getLong(HEADER + 8 * slot) != 0)
+            return false;
+        table.putLong(HEADER + 8 * slot, fingerprint);
+        table.putInt(12, ++count);
+        if (count * 2 > capacity)
+            grow();
+        return true;
+    }
+
+    private void grow() {
+        MappedByteBuffer old = table;
+        int oldCapacity = capacity;
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            map(temp, oldCapacity * 2);
+            for (int i = 0; i < oldCapacity; i++) {
+                long value = old.getLong(HEADER + 8 * i);
+                if (value != 0)
+                    insert(value);
+            }
+            table.force();
+            if (!temp.renameTo(file))
+                throw new IOException("rename failed");
+        }
+        catch (IOException e) {
+            // keep going with the old, fuller table; it only gets slower
+            LOG.log(Level.WARNING, "could not grow fingerprint index", e);
+            table = old;
+            capacity = oldCapacity;
+            count = old.getInt(12);
+            temp.delete();
+        }
+    }
+
+    // forget everything and hold off add() until finishRebuild()
+    public synchronized void startRebuild() throws IOException {
+        map(file, MIN_CAPACITY);
+        rebuilding = true;
+    }
+
+    // a message that is already in the provider
+    public synchronized void addExisting(String number, long date, String text) {
+        insert(fingerprint(number, date, text));
+    }
+
+    // also call this if the rebuild fails, or add() waits forever
+    public synchronized void finishRebuild() {
+        rebuilding = false;
+        created = false;
+        table.force();
+        notifyAll();
+    }
+
+    // flush the table out to storage
+    public synchronized void sync() {
+        table.force();
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // a message store that skips rows already in the index.
+    // rows are recorded once a flush writes them; a store that flushes by
+    // itself in add() has those recorded at the next flush.
+    public MessageStore filter(final MessageStore store) {
+        final Pending pending = new Pending();
+        return new MessageStore() {
+            @Override
+            public void add(String number, String text, int type, long date) {
+                synchronized (pending) {
+                    if (!pending.add(number, date, text))
+                        return;
+                    try {
+                        store.add(number, text, type, date);
+                    }
+                    catch (RuntimeException e) {
+                        pending.discard();
+                        throw e;
+                    }
+                }
+            }
+
+            @Override
+            public void flush() {
+                synchronized (pending) {
+                    try {
+                        store.flush();
+                    }
+                    catch (RuntimeException e) {
+                        pending.discard();
+                        throw e;
+                    }
+                    pending.commit();
+                }
+            }
+        };
+    }
+
+    // an sms synthesizer that skips messages already in the index.
+    // messages are recorded once a flush delivers them.
+    public SmsSynthesizer filter(final SmsSynthesizer synthesizer) {
+        final Pending pending = new Pending();
+        return new SmsSynthesizer() {
+            @Override
+            public void add(String address, String text, long date) {
+                synchronized (pending) {
+                    if (pending.add(address, date, text))
+                        synthesizer.add(address, text, date);
+                }
+            }
+
+            @Override
+            public void flush() {
+                synchronized (pending) {
+                    try {
+                        synthesizer.flush();
+                    }
+                    catch (RuntimeException e) {
+                        pending.discard();
+                        throw e;
+                    }
+                    pending.commit();
+                }
+            }
+        };
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("fingerprint index: " + count + "/" + capacity + " slots" + (rebuilding ? " rebuilding" : ""));
+        writer.println("  duplicates skipped=" + hits + " lookups=" + (hits + misses));
+    }
+}
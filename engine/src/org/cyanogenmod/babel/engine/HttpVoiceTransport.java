@@ -0,0 +1,243 @@
+package org.cyanogenmod.babel.engine;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * VoiceTransport on plain HttpURLConnection, so the engine can talk to
+ * google voice, or a stand-in for it, from any JVM.
+ * Meant to be shared: every response is read to the end and closed rather
+ * than disconnected, so the platform connection pool keeps the socket, and
+ * the TLS session, alive for the next request. warm() opens a connection
+ * ahead of time when a send or refresh is likely to follow. Send latency is
+ * tracked separately for sends that found a warm connection and sends that
+ * had to set one up.
+ */
+public class HttpVoiceTransport implements VoiceTransport {
+    private static final Logger LOG = Logger.getLogger("Babel");
+
+    public static final String GOOGLE_VOICE = "https://www.google.com/voice";
+
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+    // a connection idle longer than this is assumed gone.
+    // shorter than the pool's own idle timeout, so warm() errs on the side of connecting.
+    private static final long KEEP_ALIVE = 30 * 1000;
+
+    private final String base;
+    private final AtomicLong lastUsed = new AtomicLong();
+    private final AtomicBoolean warming = new AtomicBoolean();
+    final AtomicLong warmups = new AtomicLong();
+    final Metrics.Histogram coldSends = new Metrics.Histogram();
+    final Metrics.Histogram warmSends = new Metrics.Histogram();
+
+    // base is everything before /request/..., e.g. GOOGLE_VOICE
+    public HttpVoiceTransport(String base) {
+        this.base = base;
+    }
+
+    private HttpURLConnection open(String path, String authToken) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection)new URL(base + path).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        if (authToken != null)
+            conn.setRequestProperty("Authorization", "GoogleLogin auth=" + authToken);
+        return conn;
+    }
+
+    // read whatever is left of the response and close it, which hands the
+    // connection back to the pool instead of tearing it down.
+    private void release(InputStream in) {
+        if (in == null)
+            return;
+        try {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1);
+            in.close();
+            lastUsed.set(System.currentTimeMillis());
+        }
+        catch (IOException e) {
+        }
+    }
+
+    // throw AuthException for a rejected token, and a plain error for anything else unexpected.
+    private void check(HttpURLConnection conn) throws Exception {
+        int code = conn.getResponseCode();
+        if (code < 400)
+            return;
+        release(conn.getErrorStream());
+        if (code == 401 || code == 403)
+            throw new AuthException(code);
+        throw new IOException("http error: " + code);
+    }
+
+    // stream the response object up to the named top level field, and return
+    // its value as a string, or null if it isn't there. the rest is skipped.
+    private String readField(HttpURLConnection conn, String name) throws IOException {
+        InputStream in = conn.getInputStream();
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!name.equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                JsonToken token = reader.peek();
+                if (token == JsonToken.BOOLEAN)
+                    return String.valueOf(reader.nextBoolean());
+                if (token == JsonToken.NULL) {
+                    reader.nextNull();
+                    return null;
+                }
+                return reader.nextString();
+            }
+            return null;
+        }
+        finally {
+            release(in);
+        }
+    }
+
+    // is there likely a live connection in the pool?
+    public boolean isWarm() {
+        return System.currentTimeMillis() - lastUsed.get() < KEEP_ALIVE;
+    }
+
+    // open a connection to the server in the background, unless there
+    // already is one, so the request that follows skips dns, tcp and tls setup.
+    public void warm() {
+        if (isWarm() || !warming.compareAndSet(false, true))
+            return;
+        new Thread("VoiceWarmup") {
+            @Override
+            public void run() {
+                try {
+                    HttpURLConnection conn = open("/", null);
+                    conn.setRequestMethod("HEAD");
+                    conn.setInstanceFollowRedirects(false);
+                    int code = conn.getResponseCode();
+                    release(code < 400 ? conn.getInputStream() : conn.getErrorStream());
+                    warmups.incrementAndGet();
+                }
+                catch (Exception e) {
+                    LOG.log(Level.FINE, "warmup failed", e);
+                }
+                finally {
+                    warming.set(false);
+                }
+            }
+        }.start();
+    }
+
+    @Override
+    public String fetchRnrSe(String authToken) throws Exception {
+        HttpURLConnection conn = open("/request/user", authToken);
+        check(conn);
+        String rnrse = readField(conn, "r");
+        if (rnrse == null)
+            throw new IOException("no _rnr_se in user info");
+        return rnrse;
+    }
+
+    @Override
+    public void send(String authToken, String rnrse, String number, String text) throws Exception {
+        long start = System.nanoTime();
+        boolean warm = isWarm();
+
+        String body = "phoneNumber=" + URLEncoder.encode(number, "UTF-8")
+        + "&sendErrorSms=0"
+        + "&text=" + URLEncoder.encode(text, "UTF-8")
+        + "&_rnr_se=" + URLEncoder.encode(rnrse, "UTF-8");
+        byte[] bytes = body.getBytes("UTF-8");
+
+        HttpURLConnection conn = open("/sms/send/", authToken);
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+        conn.setFixedLengthStreamingMode(bytes.length);
+        OutputStream out = conn.getOutputStream();
+        try {
+            out.write(bytes);
+        }
+        finally {
+            out.close();
+        }
+
+        check(conn);
+        String ok = readField(conn, "ok");
+        (warm ? warmSends : coldSends).record(System.nanoTime() - start);
+        if (!"true".equals(ok))
+            throw new Exception("send rejected: ok=" + ok);
+    }
+
+    @Override
+    public MessagesResponse fetchMessages(String authToken, String etag, String lastModified) throws Exception {
+        HttpURLConnection conn = open("/request/messages", authToken);
+        // asking explicitly turns off transparent decompression on android,
+        // so unzip by hand either way.
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        if (etag != null)
+            conn.setRequestProperty("If-None-Match", etag);
+        if (lastModified != null)
+            conn.setRequestProperty("If-Modified-Since", lastModified);
+        if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            release(conn.getInputStream());
+            return null;
+        }
+        return new MessagesResponse(body(conn), conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+    }
+
+    @Override
+    public InputStream fetchPage(String authToken, int page) throws Exception {
+        HttpURLConnection conn = open("/request/messages?page=" + page, authToken);
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        return body(conn);
+    }
+
+    // the response body, unzipped if need be
+    private InputStream body(HttpURLConnection conn) throws Exception {
+        check(conn);
+        InputStream in = conn.getInputStream();
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding()))
+            in = new GZIPInputStream(in);
+        final InputStream body = in;
+        // hand the connection back to the pool once the caller is done parsing
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return body.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                return body.read(buffer, offset, count);
+            }
+
+            @Override
+            public void close() {
+                release(body);
+            }
+        };
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("voice transport: " + (isWarm() ? "warm" : "cold") + " warmups=" + warmups.get());
+        coldSends.dump(writer, "cold send");
+        warmSends.dump(writer, "warm send");
+    }
+}
@@ -0,0 +1,307 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * StateStore that serves reads from memory and appends writes to a log.
+ * put() only touches memory and a buffer; a background thread writes out
+ * and syncs everything buffered at most maxDelay after the first unsynced
+ * put, so many puts share one fsync and none of them wait for it.
+ * A crash loses at most the last maxDelay worth of puts, each put's
+ * updates land together or not at all, and a torn record at the end of the
+ * log is dropped on load. The log is rewritten as a snapshot once it grows
+ * well past the size of the live state.
+ *
+ * Record: int key length, key, int value length (-1 to remove), value. UTF-8.
+ * A put of several keys is one batch: int count, then the records.
+ */
+public class JournaledStateStore implements StateStore {
+    private static final Logger LOG = Logger.getLogger("Babel");
+
+    private static final int COMPACT_SIZE = 64 * 1024;
+
+    private final File file;
+    private final long maxDelay;
+    private final HashMap<String, String> values = new HashMap<String, String>();
+    private final ScheduledExecutorService writer;
+
+    // batches waiting to be written
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private boolean scheduled;
+    private long logSize;
+    // what a snapshot of the live state took, as of the last load or compaction
+    private long liveSize;
+
+    long puts;
+    long commits;
+    long compactions;
+    long maxBatch;
+
+    private final Runnable commit = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+
+    public JournaledStateStore(File file, long maxDelay) {
+        this.file = file;
+        this.maxDelay = maxDelay;
+        load();
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BabelState");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // true if there was no log to load, e.g. to migrate older state in
+    public synchronized boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    private void load() {
+        if (!file.exists())
+            return;
+        long good = 0;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                HashMap<String, String> batch = new HashMap<String, String>();
+                while (true) {
+                    batch.clear();
+                    int count;
+                    try {
+                        count = in.readInt();
+                    }
+                    catch (EOFException e) {
+                        break;
+                    }
+                    int size = 4;
+                    for (int i = 0; i < count; i++) {
+                        String key = readString(in);
+                        String value = readString(in);
+                        batch.put(key, value);
+                        size += 8 + utf8Length(key) + (value == null ? 0 : utf8Length(value));
+                    }
+                    apply(batch);
+                    good += size;
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            // a torn batch from a crash mid write; everything before it is fine
+            LOG.info("state log ends in a partial write at " + good + ", dropping it");
+        }
+        logSize = good;
+        liveSize = snapshotSize();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() != good)
+                    raf.setLength(good);
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch (IOException e) {
+            LOG.log(Level.WARNING, "could not trim state log", e);
+        }
+    }
+
+    // what the live state takes as one snapshot batch
+    private long snapshotSize() {
+        long size = 4;
+        try {
+            for (Map.Entry<String, String> entry: values.entrySet())
+                size += 8 + utf8Length(entry.getKey()) + utf8Length(entry.getValue());
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return size;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int utf8Length(String value) throws IOException {
+        return value.getBytes("UTF-8").length;
+    }
+
+    private void apply(Map<String, String> updates) {
+        for (Map.Entry<String, String> entry: updates.entrySet()) {
+            if (entry.getValue() == null)
+                values.remove(entry.getKey());
+            else
+                values.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public synchronized String get(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public synchronized void put(Map<String, String> updates) {
+        if (updates.isEmpty())
+            return;
+        apply(updates);
+        puts++;
+        try {
+            DataOutputStream out = new DataOutputStream(pending);
+            out.writeInt(updates.size());
+            for (Map.Entry<String, String> entry: updates.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+        catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        if (!scheduled) {
+            scheduled = true;
+            writer.schedule(commit, maxDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // write out and sync anything buffered, right now.
+    public void flush() {
+        commit();
+    }
+
+    public void shutdown() {
+        flush();
+        writer.shutdown();
+    }
+
+    private void commit() {
+        // only one commit at a time, but puts keep going into a fresh buffer meanwhile
+        synchronized (file) {
+            ByteArrayOutputStream batch;
+            boolean compact;
+            HashMap<String, String> snapshot = null;
+            synchronized (this) {
+                scheduled = false;
+                batch = pending;
+                if (batch.size() == 0)
+                    return;
+                pending = new ByteArrayOutputStream();
+                maxBatch = Math.max(maxBatch, batch.size());
+                compact = logSize + batch.size() > COMPACT_SIZE && logSize + batch.size() > 4 * liveSize;
+                if (compact)
+                    snapshot = new HashMap<String, String>(values);
+            }
+
+            try {
+                if (compact)
+                    compact(snapshot);
+                else
+                    append(batch);
+            }
+            catch (IOException e) {
+                LOG.log(Level.SEVERE, "Error writing state log", e);
+                // try again with the next commit
+                synchronized (this) {
+                    ByteArrayOutputStream retry = new ByteArrayOutputStream();
+                    retry.write(batch.toByteArray(), 0, batch.size());
+                    retry.write(pending.toByteArray(), 0, pending.size());
+                    pending = retry;
+                    if (!scheduled) {
+                        scheduled = true;
+                        writer.schedule(commit, maxDelay, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        }
+    }
+
+    private void append(ByteArrayOutputStream batch) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            batch.writeTo(out);
+            out.flush();
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        logSize += batch.size();
+        commits++;
+    }
+
+    // write the live state as one batch to a new file and swap it in
+    private void compact(HashMap<String, String> snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(snapshot.size());
+        for (Map.Entry<String, String> entry: snapshot.entrySet()) {
+            writeString(data, entry.getKey());
+            writeString(data, entry.getValue());
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            bytes.writeTo(out);
+            out.flush();
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("could not replace " + file);
+        logSize = bytes.size();
+        liveSize = bytes.size();
+        commits++;
+        compactions++;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("state store: keys=" + values.size() + " log=" + logSize + " bytes, delay=" + maxDelay + "ms");
+        writer.println("  puts=" + puts + " commits=" + commits + " compactions=" + compactions + " largest commit=" + maxBatch + " bytes");
+    }
+}
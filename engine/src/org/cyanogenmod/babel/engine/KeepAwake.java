@@ -0,0 +1,21 @@
+package org.cyanogenmod.babel.engine;
+
+/**
+ * Keeps the device from suspending while a refresh or send is in flight.
+ * Calls nest and come from any thread; every acquire is matched by a release.
+ */
+public interface KeepAwake {
+    KeepAwake NONE = new KeepAwake() {
+        @Override
+        public void acquire() {
+        }
+
+        @Override
+        public void release() {
+        }
+    };
+
+    void acquire();
+
+    void release();
+}
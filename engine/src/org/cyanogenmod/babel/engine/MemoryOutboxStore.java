@@ -0,0 +1,48 @@
+package org.cyanogenmod.babel.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * OutboxStore that forgets everything when the process exits.
+ */
+public class MemoryOutboxStore implements OutboxStore {
+    private final TreeMap<Long, Outbox.Entry> entries = new TreeMap<Long, Outbox.Entry>();
+    private long nextId = 1;
+
+    @Override
+    public synchronized long insert(String address, String body, long created) {
+        long id = nextId++;
+        Outbox.Entry entry = new Outbox.Entry(id, address, body, created);
+        entry.nextAttempt = created;
+        entries.put(id, entry);
+        return id;
+    }
+
+    @Override
+    public synchronized void update(long id, int attempts, long nextAttempt) {
+        Outbox.Entry entry = entries.get(id);
+        if (entry == null)
+            return;
+        entry.attempts = attempts;
+        entry.nextAttempt = nextAttempt;
+    }
+
+    @Override
+    public synchronized void delete(long id) {
+        entries.remove(id);
+    }
+
+    @Override
+    public synchronized List<Outbox.Entry> getAll() {
+        ArrayList<Outbox.Entry> all = new ArrayList<Outbox.Entry>();
+        for (Outbox.Entry entry: entries.values()) {
+            Outbox.Entry copy = new Outbox.Entry(entry.id, entry.address, entry.body, entry.created);
+            copy.attempts = entry.attempts;
+            copy.nextAttempt = entry.nextAttempt;
+            all.add(copy);
+        }
+        return all;
+    }
+}
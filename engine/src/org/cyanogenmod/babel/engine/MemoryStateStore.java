@@ -0,0 +1,26 @@
+package org.cyanogenmod.babel.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * StateStore that forgets everything when the process exits.
+ */
+public class MemoryStateStore implements StateStore {
+    private final HashMap<String, String> values = new HashMap<String, String>();
+
+    @Override
+    public synchronized String get(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public synchronized void put(Map<String, String> updates) {
+        for (Map.Entry<String, String> entry: updates.entrySet()) {
+            if (entry.getValue() == null)
+                values.remove(entry.getKey());
+            else
+                values.put(entry.getKey(), entry.getValue());
+        }
+    }
+}
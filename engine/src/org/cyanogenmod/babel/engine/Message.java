@@ -0,0 +1,17 @@
+package org.cyanogenmod.babel.engine;
+
+/**
+ * A single google voice text message, as found in the
+ * children of a conversation in /voice/request/messages.
+ */
+public class Message {
+    // 10 is incoming
+    // 11 is outgoing
+    public static final int VOICE_INCOMING_SMS = 10;
+    public static final int VOICE_OUTGOING_SMS = 11;
+
+    public long date;
+    public String phoneNumber;
+    public String message;
+    public int type;
+}
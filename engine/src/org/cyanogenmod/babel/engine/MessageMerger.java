@@ -0,0 +1,93 @@
+package org.cyanogenmod.babel.engine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks several date ordered message lists as one, oldest first, without
+ * building the combined list. Keeps a binary min heap of one cursor per
+ * list, so each message costs O(log k) for k lists. Messages with the same
+ * date come out in list order, same as a stable sort of the concatenation.
+ */
+public class MessageMerger implements Iterator<Message>, Iterable<Message> {
+    private final ArrayList<ArrayList<Message>> lists;
+    // next unread position in each list, and the date of the message there
+    private final int[] positions;
+    private final long[] heads;
+    // indexes into lists, ordered by the date of their next message
+    private final int[] heap;
+    private int size;
+
+    public MessageMerger(ArrayList<ArrayList<Message>> lists) {
+        this.lists = lists;
+        positions = new int[lists.size()];
+        heads = new long[lists.size()];
+        heap = new int[lists.size()];
+        for (int i = 0; i < lists.size(); i++) {
+            if (lists.get(i).isEmpty())
+                continue;
+            heads[i] = lists.get(i).get(0).date;
+            heap[size++] = i;
+        }
+        for (int i = size / 2 - 1; i >= 0; i--)
+            siftDown(i);
+    }
+
+    @Override
+    public Iterator<Message> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return size > 0;
+    }
+
+    @Override
+    public Message next() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        int list = heap[0];
+        ArrayList<Message> messages = lists.get(list);
+        int position = positions[list]++;
+        Message message = messages.get(position);
+        // advance the cursor in place, or drop it if its list is done
+        if (position + 1 < messages.size())
+            heads[list] = messages.get(position + 1).date;
+        else
+            heap[0] = heap[--size];
+        if (size > 0)
+            siftDown(0);
+        return message;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private boolean less(int a, int b) {
+        long lhs = heads[a];
+        long rhs = heads[b];
+        if (lhs != rhs)
+            return lhs < rhs;
+        return a < b;
+    }
+
+    private void siftDown(int i) {
+        int cursor = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && less(heap[child + 1], heap[child]))
+                child++;
+            if (!less(heap[child], cursor))
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = cursor;
+    }
+}
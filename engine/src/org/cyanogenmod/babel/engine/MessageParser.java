@@ -0,0 +1,204 @@
+package org.cyanogenmod.babel.engine;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Streaming parser for the /voice/request/messages payload.
+ * Only the fields that sync uses are read; everything else is skipped
+ * without being materialized. Messages at or below the watermark are
+ * dropped as soon as their date is known, so allocation scales with the
+ * number of new messages rather than the size of the history.
+ * Conversations the filter reports as unchanged since the last sync are
+ * skipped without walking their messages at all.
+ */
+public class MessageParser {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    public interface ConversationFilter {
+        // return true if the conversation looks exactly like it did last sync
+        boolean isUnchanged(String id, long startTime, long digest);
+    }
+
+    public static class Conversation {
+        public final String id;
+        public final long startTime;
+        public final long digest;
+
+        Conversation(String id, long startTime, long digest) {
+            this.id = id;
+            this.startTime = startTime;
+            this.digest = digest;
+        }
+    }
+
+    public static class Result {
+        // new messages, grouped by the conversation they arrived in,
+        // in the order the server listed them.
+        public final ArrayList<ArrayList<Message>> conversations = new ArrayList<ArrayList<Message>>();
+        // newest message date seen anywhere in the payload
+        public long max;
+        // total number of messages walked, kept or not
+        public int total;
+        // every conversation in the payload, walked or not
+        public final ArrayList<Conversation> seen = new ArrayList<Conversation>();
+        // conversations that were skipped as unchanged
+        public int skipped;
+    }
+
+    public static Result parse(Reader in, long watermark) throws IOException {
+        return parse(in, watermark, null);
+    }
+
+    public static Result parse(Reader in, long watermark, ConversationFilter filter) throws IOException {
+        return parse(in, watermark, watermark, filter);
+    }
+
+    // everything parse() finds except the messages themselves: the newest
+    // date, the count and the conversations. for a first sync, which leaves
+    // the history to the backfill and only needs to know where it ends.
+    public static Result scan(Reader in) throws IOException {
+        // every message is old, so none are kept
+        return parse(in, Long.MAX_VALUE, 0, null);
+    }
+
+    private static Result parse(Reader in, long watermark, long max, ConversationFilter filter) throws IOException {
+        Result result = new Result();
+        result.max = max;
+
+        JsonReader reader = new JsonReader(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"messageList".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                ArrayList<Message> messages = parseConversation(reader, watermark, filter, result);
+                if (messages != null)
+                    result.conversations.add(messages);
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return result;
+    }
+
+    private static ArrayList<Message> parseConversation(JsonReader reader, long watermark, ConversationFilter filter, Result result) throws IOException {
+        ArrayList<Message> messages = null;
+        String id = null;
+        long startTime = 0;
+        String messageText = null;
+        boolean walked = false;
+        boolean skipped = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if ("id".equals(name) && token == JsonToken.STRING) {
+                id = reader.nextString();
+            }
+            else if ("startTime".equals(name) && (token == JsonToken.NUMBER || token == JsonToken.STRING)) {
+                startTime = reader.nextLong();
+            }
+            else if ("messageText".equals(name) && token == JsonToken.STRING) {
+                messageText = reader.nextString();
+            }
+            else if ("children".equals(name) && token == JsonToken.BEGIN_ARRAY) {
+                // the header usually comes first. if it does, and it matches
+                // what we saw last time, there's nothing new in here.
+                if (filter != null && id != null && startTime != 0 && filter.isUnchanged(id, startTime, digest(id, startTime, messageText))) {
+                    reader.skipValue();
+                    skipped = true;
+                    continue;
+                }
+                walked = true;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Message message = parseMessage(reader, watermark, result);
+                    if (message == null)
+                        continue;
+                    if (messages == null)
+                        messages = new ArrayList<Message>();
+                    messages.add(message);
+                }
+                reader.endArray();
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (skipped && !walked)
+            result.skipped++;
+        if (id != null)
+            result.seen.add(new Conversation(id, startTime, digest(id, startTime, messageText)));
+        return messages;
+    }
+
+    // 64 bit fnv-1a over the conversation header
+    static long digest(String id, long startTime, String messageText) {
+        long hash = FNV_OFFSET;
+        hash = fnv(hash, id);
+        for (int i = 0; i < 64; i += 8) {
+            hash ^= (startTime >>> i) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return fnv(hash, messageText);
+    }
+
+    private static long fnv(long hash, String value) {
+        if (value == null)
+            return hash;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    // returns null if the message is at or below the watermark.
+    private static Message parseMessage(JsonReader reader, long watermark, Result result) throws IOException {
+        result.total++;
+        Message message = new Message();
+        boolean old = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (old || reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            }
+            else if ("startTime".equals(name)) {
+                message.date = reader.nextLong();
+                result.max = Math.max(result.max, message.date);
+                // already synced, don't bother with the rest of it
+                old = message.date <= watermark;
+            }
+            else if ("phoneNumber".equals(name)) {
+                message.phoneNumber = reader.nextString();
+            }
+            else if ("message".equals(name)) {
+                message.message = reader.nextString();
+            }
+            else if ("type".equals(name)) {
+                message.type = reader.nextInt();
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // a message without a date is treated as old, same as before
+        if (old || message.date <= watermark)
+            return null;
+        return message;
+    }
+}
@@ -0,0 +1,15 @@
+package org.cyanogenmod.babel.engine;
+
+/**
+ * Where synced messages that need no broadcast end up: the sms provider
+ * on a device, or a fake in benchmarks.
+ * The engine shares one store between refresh and backfill, which run on
+ * different threads, so implementations must be thread safe.
+ */
+public interface MessageStore {
+    // queue a row. it may not be written until flush.
+    void add(String number, String text, int type, long date);
+
+    // write out everything queued so far.
+    void flush();
+}
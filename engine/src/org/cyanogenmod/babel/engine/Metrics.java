@@ -0,0 +1,139 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms, cheap enough to leave on all the time.
+ * Histograms have fixed power of two buckets, so recording a sample is a
+ * few atomic adds and never allocates. Percentiles are reported as the
+ * upper bound of the bucket they fall in, so they're within 2x.
+ * Also a StageListener, so engine stage timings land in a histogram per stage;
+ * scope() gives each engine its own set when there are several.
+ */
+public class Metrics implements StageListener {
+    public static class Histogram {
+        // bucket i counts samples under 2^i microseconds. the last one is about 12 days.
+        private static final int BUCKETS = 41;
+
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+
+        public void record(long nanos) {
+            recordMicros(nanos / 1000);
+        }
+
+        public void recordMillis(long millis) {
+            recordMicros(millis * 1000);
+        }
+
+        private void recordMicros(long micros) {
+            if (micros < 0)
+                micros = 0;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalMicros.addAndGet(micros);
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros));
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        // upper bound of the bucket holding the pth sample, in microseconds
+        long percentile(double p, long total) {
+            long rank = (long)Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(1L << i, maxMicros.get());
+            }
+            return maxMicros.get();
+        }
+
+        void dump(PrintWriter writer, String name) {
+            long total = count.get();
+            if (total == 0) {
+                writer.println("  " + name + ": none");
+                return;
+            }
+            writer.println("  " + name + ": count=" + total
+            + " avg=" + millis(totalMicros.get() / total)
+            + " p50<=" + millis(percentile(0.50, total))
+            + " p95<=" + millis(percentile(0.95, total))
+            + " p99<=" + millis(percentile(0.99, total))
+            + " max=" + millis(maxMicros.get()));
+        }
+
+        private static String millis(long micros) {
+            if (micros < 10000)
+                return String.format("%.2fms", micros / 1000.0);
+            return (micros / 1000) + "ms";
+        }
+    }
+
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final long started = System.currentTimeMillis();
+
+    // hang on to the result to skip the lookup next time
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    public AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new AtomicLong());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    @Override
+    public void onStage(String stage, long nanos) {
+        histogram(stage).record(nanos);
+    }
+
+    // stage timings under "<prefix> <stage>", as well as under the stage.
+    // both histograms are looked up once per stage, so recording doesn't
+    // build a name every time.
+    public StageListener scope(final String prefix) {
+        return new StageListener() {
+            private final ConcurrentHashMap<String, Histogram[]> stages = new ConcurrentHashMap<String, Histogram[]>();
+
+            @Override
+            public void onStage(String stage, long nanos) {
+                Histogram[] pair = stages.get(stage);
+                if (pair == null) {
+                    pair = new Histogram[] { histogram(stage), histogram(prefix + " " + stage) };
+                    stages.putIfAbsent(stage, pair);
+                }
+                pair[0].record(nanos);
+                pair[1].record(nanos);
+            }
+        };
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("metrics: up " + (System.currentTimeMillis() - started) / 1000 + "s");
+        for (Map.Entry<String, AtomicLong> counter: new TreeMap<String, AtomicLong>(counters).entrySet())
+            writer.println("  " + counter.getKey() + "=" + counter.getValue().get());
+        for (Map.Entry<String, Histogram> histogram: new TreeMap<String, Histogram>(histograms).entrySet())
+            histogram.getValue().dump(writer, histogram.getKey());
+    }
+}
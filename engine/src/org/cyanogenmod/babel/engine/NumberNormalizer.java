@@ -0,0 +1,97 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Puts phone numbers into one form, so the same contact looks the same
+ * whether the number came from google voice or from the dialer, and
+ * threads, round trip matching and routing all agree.
+ * Google voice is us only, so ten digit numbers are taken to be north
+ * american: "(555) 123-4567", "1-555-123-4567" and "+15551234567" all
+ * become "+15551234567". Short codes stay bare digits, and anything with
+ * letters in it (an email gateway, a named sender) is left alone.
+ * A handful of contacts make up most of the traffic, so results are kept
+ * in a bounded LRU cache; one instance can be shared by all callers.
+ */
+public class NumberNormalizer {
+    private final int capacity;
+    private final LinkedHashMap<String, String> cache;
+
+    private long hits;
+    private long misses;
+
+    public NumberNormalizer(final int capacity) {
+        this.capacity = Math.max(1, capacity);
+        cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > NumberNormalizer.this.capacity;
+            }
+        };
+    }
+
+    // the canonical form of number, from the cache if it's there
+    public String normalize(String number) {
+        if (number == null)
+            return null;
+        synchronized (this) {
+            String normalized = cache.get(number);
+            if (normalized != null) {
+                hits++;
+                return normalized;
+            }
+            misses++;
+        }
+        String normalized = toE164(number);
+        synchronized (this) {
+            cache.put(number, normalized);
+        }
+        return normalized;
+    }
+
+    // the actual work, without the cache
+    public static String toE164(String number) {
+        if (number == null)
+            return null;
+        StringBuilder digits = new StringBuilder(number.length() + 2);
+        boolean plus = false;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9')
+                digits.append(c);
+            else if (c == '+' && digits.length() == 0)
+                plus = true;
+            else if (Character.isLetter(c))
+                return number.trim();
+        }
+        if (digits.length() == 0)
+            return number.trim();
+
+        if (plus)
+            return digits.insert(0, '+').toString();
+        // dialed with the us international prefix
+        if (digits.length() > 3 && digits.charAt(0) == '0' && digits.charAt(1) == '1' && digits.charAt(2) == '1')
+            return digits.replace(0, 3, "+").toString();
+        if (digits.length() == 10)
+            return digits.insert(0, "+1").toString();
+        if (digits.length() == 11 && digits.charAt(0) == '1')
+            return digits.insert(0, '+').toString();
+        return digits.toString();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        long lookups = hits + misses;
+        writer.println("number normalizer: cached=" + cache.size() + "/" + capacity);
+        writer.println("  lookups=" + lookups + " hits=" + hits + " hit rate=" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%");
+    }
+}
@@ -0,0 +1,345 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable queue of outgoing messages.
+ * Every message is journaled before the first send attempt and only removed
+ * once it has either gone out or run out of attempts. Failed attempts are
+ * retried with exponential backoff and jitter. Anything left in the journal
+ * when the service dies is picked up again by resume(); shutdown() leaves
+ * whatever hasn't gone out in the journal as it is, for the next resume().
+ * Messages to one destination go out in the order they were enqueued: only
+ * the oldest is attempted, and the rest wait behind it, retries and all.
+ */
+public class Outbox {
+    private static final Logger LOG = Logger.getLogger("Babel");
+
+    public static class Entry {
+        public final long id;
+        public final String address;
+        public final String body;
+        public final long created;
+        public int attempts;
+        public long nextAttempt;
+        // System.nanoTime() when the message reached the app,
+        // or 0 if it was left over from an earlier run
+        public long received;
+        // the stage the time from received to the first send request goes under
+        public String handoff = StageListener.HANDOFF;
+
+        public Entry(long id, String address, String body, long created) {
+            this.id = id;
+            this.address = address;
+            this.body = body;
+            this.created = created;
+        }
+    }
+
+    public interface Sender {
+        // make one attempt at sending the entry. throw on failure.
+        void send(Entry entry) throws Exception;
+    }
+
+    public interface Callback {
+        void onSent();
+        void onFailed();
+    }
+
+    private final OutboxStore store;
+    private final SendExecutor executor;
+    private final Sender sender;
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // sent intents only live as long as this process does
+    private final ConcurrentHashMap<Long, Callback> callbacks = new ConcurrentHashMap<Long, Callback>();
+    private volatile boolean shutdown;
+    // entries by destination, oldest first. only the first of each is
+    // being attempted or waiting to retry.
+    private final HashMap<String, ArrayDeque<Entry>> destinations = new HashMap<String, ArrayDeque<Entry>>();
+
+    private final long started = System.currentTimeMillis();
+    final AtomicInteger pending = new AtomicInteger();
+    final AtomicLong enqueued = new AtomicLong();
+    final AtomicLong attempts = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong requeued = new AtomicLong();
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+
+    public Outbox(OutboxStore store, SendExecutor executor, Sender sender, int maxAttempts, long baseDelay, long maxDelay) {
+        this.store = store;
+        this.executor = executor;
+        this.sender = sender;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    // journal a message and make the first attempt as soon as a send worker is free.
+    public void enqueue(String address, String text, Callback callback) {
+        enqueue(address, text, System.nanoTime(), callback);
+    }
+
+    // received is System.nanoTime() when the message first reached the app
+    public void enqueue(String address, String text, long received, Callback callback) {
+        enqueue(address, text, received, StageListener.HANDOFF, callback);
+    }
+
+    // handoff names the stage the wait for the first send request is recorded
+    // under, so different ways of reaching the app can be told apart
+    public void enqueue(String address, String text, long received, String handoff, Callback callback) {
+        long now = System.currentTimeMillis();
+        long id;
+        try {
+            id = store.insert(address, text, now);
+        }
+        catch (Exception e) {
+            LOG.log(Level.SEVERE, "Error journaling outgoing sms", e);
+            id = -1;
+        }
+        if (id == -1) {
+            callback.onFailed();
+            return;
+        }
+
+        enqueued.incrementAndGet();
+        pending.incrementAndGet();
+        callbacks.put(id, callback);
+        Entry entry = new Entry(id, address, text, now);
+        entry.received = received;
+        entry.handoff = handoff;
+        hold(entry);
+    }
+
+    // reschedule everything left over from a previous run.
+    // the sent intents for these are gone, but the messages still go out,
+    // behind anything the user is sending now.
+    public void resume() {
+        for (Entry entry: store.getAll()) {
+            pending.incrementAndGet();
+            hold(entry);
+        }
+    }
+
+    // stop scheduling attempts. entries that haven't gone out stay in the
+    // journal as they are, with no callback, and go out after the next resume().
+    public void shutdown() {
+        shutdown = true;
+        scheduler.shutdownNow();
+        // the first entry for each destination is abandoned wherever it is now
+        ArrayList<Entry> waiting = new ArrayList<Entry>();
+        synchronized (destinations) {
+            for (ArrayDeque<Entry> queue: destinations.values()) {
+                Entry first = queue.poll();
+                waiting.addAll(queue);
+                queue.clear();
+                queue.add(first);
+            }
+        }
+        for (Entry entry: waiting)
+            abandon(entry);
+    }
+
+    // line the entry up behind any others for its destination,
+    // and start on it if there are none.
+    private void hold(Entry entry) {
+        synchronized (destinations) {
+            ArrayDeque<Entry> queue = destinations.get(entry.address);
+            if (queue == null) {
+                queue = new ArrayDeque<Entry>();
+                destinations.put(entry.address, queue);
+            }
+            queue.add(entry);
+            if (queue.size() > 1)
+                return;
+        }
+        dispatch(entry);
+    }
+
+    // the entry is done with one way or another; start on the next one
+    // for its destination.
+    private void release(Entry entry) {
+        Entry next;
+        synchronized (destinations) {
+            ArrayDeque<Entry> queue = destinations.get(entry.address);
+            if (queue == null || queue.peek() != entry)
+                return;
+            queue.poll();
+            next = queue.peek();
+            if (next == null)
+                destinations.remove(entry.address);
+        }
+        if (next == null)
+            return;
+        if (shutdown)
+            abandon(next);
+        else
+            dispatch(next);
+    }
+
+    // a message that just reached the app goes ahead of retries;
+    // one left over from an earlier run goes behind everything.
+    private void dispatch(Entry entry) {
+        int priority;
+        if (entry.attempts > 0)
+            priority = SendExecutor.PRIORITY_RETRY;
+        else if (entry.received != 0)
+            priority = SendExecutor.PRIORITY_INTERACTIVE;
+        else
+            priority = SendExecutor.PRIORITY_BULK;
+        long delay = entry.nextAttempt - System.currentTimeMillis();
+        if (delay > 0)
+            schedule(entry, priority, delay);
+        else
+            submit(entry, priority);
+    }
+
+    private void schedule(final Entry entry, final int priority, long delay) {
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    submit(entry, priority);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // shut down; it's still journaled
+            abandon(entry);
+        }
+    }
+
+    private void submit(final Entry entry, final int priority) {
+        executor.submit(entry.address, priority, new SendExecutor.Task() {
+            @Override
+            public void run() {
+                attempt(entry);
+            }
+
+            @Override
+            public void reject() {
+                // a brand new message that can't even be queued fails right away,
+                // so the user finds out now. anything else waits and tries to get
+                // in again later, without it counting as an attempt.
+                if (shutdown)
+                    abandon();
+                else if (priority == SendExecutor.PRIORITY_INTERACTIVE)
+                    finish(entry, false);
+                else
+                    requeue(entry);
+            }
+
+            @Override
+            public void abandon() {
+                Outbox.this.abandon(entry);
+            }
+        });
+    }
+
+    // leave the entry in the journal untouched, for the next resume()
+    private void abandon(Entry entry) {
+        pending.decrementAndGet();
+        callbacks.remove(entry.id);
+        release(entry);
+    }
+
+    private void attempt(Entry entry) {
+        attempts.incrementAndGet();
+        try {
+            sender.send(entry);
+            finish(entry, true);
+        }
+        catch (Exception e) {
+            LOG.log(Level.FINE, "send attempt " + (entry.attempts + 1) + " failed", e);
+            retry(entry);
+        }
+    }
+
+    private void retry(Entry entry) {
+        // an attempt cut short by shutdown doesn't count against the message
+        if (shutdown) {
+            abandon(entry);
+            return;
+        }
+        entry.attempts++;
+        if (entry.attempts >= maxAttempts) {
+            finish(entry, false);
+            return;
+        }
+
+        retries.incrementAndGet();
+        long delay = backoff(entry.attempts);
+        entry.nextAttempt = System.currentTimeMillis() + delay;
+        try {
+            store.update(entry.id, entry.attempts, entry.nextAttempt);
+        }
+        catch (Exception e) {
+            LOG.log(Level.SEVERE, "Error updating outbox", e);
+        }
+        schedule(entry, SendExecutor.PRIORITY_RETRY, delay);
+    }
+
+    // the send queue was full. back off and try to get in again,
+    // with the same attempts left as before.
+    private void requeue(Entry entry) {
+        requeued.incrementAndGet();
+        schedule(entry, SendExecutor.PRIORITY_RETRY, backoff(Math.max(1, entry.attempts)));
+    }
+
+    // exponential backoff, capped, with +/- 50% jitter so a burst
+    // of failures doesn't come back as a burst of retries.
+    private long backoff(int attempt) {
+        long delay = baseDelay << Math.min(attempt - 1, 20);
+        delay = Math.min(delay, maxDelay);
+        double jitter = 0.5 + random.nextDouble();
+        return (long)(delay * jitter);
+    }
+
+    private void finish(Entry entry, boolean success) {
+        try {
+            store.delete(entry.id);
+        }
+        catch (Exception e) {
+            LOG.log(Level.SEVERE, "Error removing outbox entry", e);
+        }
+
+        pending.decrementAndGet();
+        if (success)
+            sent.incrementAndGet();
+        else
+            failed.incrementAndGet();
+        release(entry);
+
+        Callback callback = callbacks.remove(entry.id);
+        if (callback == null)
+            return;
+        if (success)
+            callback.onSent();
+        else
+            callback.onFailed();
+    }
+
+    public void dump(PrintWriter writer) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - started);
+        writer.println("outbox: pending=" + pending.get() + " enqueued=" + enqueued.get());
+        writer.println("  attempts=" + attempts.get() + " retries=" + retries.get() + " requeued=" + requeued.get() + " sent=" + sent.get() + " failed=" + failed.get());
+        writer.println("  throughput=" + (sent.get() * 60 * 60 * 1000 / elapsed) + "/hour");
+    }
+}
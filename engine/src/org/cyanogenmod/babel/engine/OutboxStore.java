@@ -0,0 +1,18 @@
+package org.cyanogenmod.babel.engine;
+
+import java.util.List;
+
+/**
+ * Durable journal behind the outbox.
+ */
+public interface OutboxStore {
+    // returns the new entry's id, or -1 if it couldn't be written.
+    long insert(String address, String body, long created);
+
+    void update(long id, int attempts, long nextAttempt);
+
+    void delete(long id);
+
+    // everything still waiting to go out, oldest first
+    List<Outbox.Entry> getAll();
+}
@@ -0,0 +1,32 @@
+package org.cyanogenmod.babel.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One account's slice of a shared StateStore. Every key gets the prefix,
+ * so engines for different accounts can share a store without seeing
+ * each other's watermark, validators or cursors.
+ */
+public class PrefixedStateStore implements StateStore {
+    private final StateStore state;
+    private final String prefix;
+
+    public PrefixedStateStore(StateStore state, String prefix) {
+        this.state = state;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public String get(String key) {
+        return state.get(prefix + key);
+    }
+
+    @Override
+    public void put(Map<String, String> values) {
+        HashMap<String, String> prefixed = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry: values.entrySet())
+            prefixed.put(prefix + entry.getKey(), entry.getValue());
+        state.put(prefixed);
+    }
+}
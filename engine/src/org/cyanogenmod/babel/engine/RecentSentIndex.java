@@ -0,0 +1,176 @@
+package org.cyanogenmod.babel.engine;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers texts this phone recently sent, so that when google voice
+ * echoes them back during a refresh they are not inserted a second time.
+ * Entries are keyed by normalized destination number and a hash of the text, expire
+ * after a fixed time, and the index never holds more than a fixed number
+ * of them. Adding and matching only touch the entry in question, so the
+ * send workers and the refresh thread never wait on each other.
+ * A matched or replaced entry is only marked dead, and stays in the
+ * eviction queue until trimming reaches it. Once more than capacity dead
+ * entries have piled up behind a live one, one pass sweeps them all out, so
+ * the queue stays within twice the capacity and every call is O(1) amortized.
+ * Only one thread trims at a time; the others skip it rather than wait.
+ */
+public class RecentSentIndex {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static class Entry {
+        final long key;
+        final long expires;
+        int count = 1;
+        boolean dead;
+
+        Entry(long key, long expires) {
+            this.key = key;
+            this.expires = expires;
+        }
+    }
+
+    private final NumberNormalizer numbers;
+    private final int capacity;
+    private final long ttl;
+    private final ConcurrentHashMap<Long, Entry> entries;
+    // insertion order, oldest first, for eviction
+    private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+    // entries marked dead but still in order
+    private final AtomicInteger dead = new AtomicInteger();
+    private final ReentrantLock trimming = new ReentrantLock();
+
+    public RecentSentIndex(int capacity, long ttl) {
+        this(capacity, ttl, new NumberNormalizer(capacity));
+    }
+
+    public RecentSentIndex(int capacity, long ttl, NumberNormalizer numbers) {
+        this.numbers = numbers;
+        this.capacity = capacity;
+        this.ttl = ttl;
+        entries = new ConcurrentHashMap<Long, Entry>(capacity * 2);
+    }
+
+    // mark a text as recently sent to this number.
+    public void add(String number, String text) {
+        long key = key(number, text);
+        long now = System.currentTimeMillis();
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key, now + ttl);
+                if (entries.putIfAbsent(key, entry) != null)
+                    continue;
+                order.add(entry);
+                break;
+            }
+            boolean killed;
+            synchronized (entry) {
+                if (!entry.dead && entry.expires > now) {
+                    // same text to the same number again before the first came back
+                    entry.count++;
+                    return;
+                }
+                killed = !entry.dead;
+                entry.dead = true;
+            }
+            entries.remove(key, entry);
+            if (killed)
+                dead.incrementAndGet();
+        }
+        trim(now);
+    }
+
+    // if this text was recently sent to this number, forget it once and return true.
+    public boolean remove(String number, String text) {
+        long key = key(number, text);
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return false;
+        boolean found;
+        synchronized (entry) {
+            if (entry.dead)
+                return false;
+            found = entry.expires > System.currentTimeMillis();
+            if (found && --entry.count > 0)
+                return true;
+            entry.dead = true;
+        }
+        entries.remove(key, entry);
+        dead.incrementAndGet();
+        return found;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // drop dead, expired and overflowing entries, oldest first,
+    // and sweep out the dead ones if too many have piled up.
+    private void trim(long now) {
+        if (!trimming.tryLock())
+            return;
+        try {
+            Entry oldest;
+            while ((oldest = order.peek()) != null) {
+                boolean evict;
+                boolean wasDead;
+                synchronized (oldest) {
+                    wasDead = oldest.dead;
+                    evict = wasDead || oldest.expires <= now || entries.size() > capacity;
+                    if (evict)
+                        oldest.dead = true;
+                }
+                if (!evict)
+                    break;
+                // only the trimming thread takes entries out of order
+                order.poll();
+                if (wasDead)
+                    dead.decrementAndGet();
+                else
+                    entries.remove(oldest.key, oldest);
+            }
+
+            if (dead.get() <= capacity)
+                return;
+            for (Iterator<Entry> i = order.iterator(); i.hasNext();) {
+                Entry entry = i.next();
+                boolean isDead;
+                synchronized (entry) {
+                    isDead = entry.dead;
+                }
+                if (isDead) {
+                    i.remove();
+                    dead.decrementAndGet();
+                }
+            }
+        }
+        finally {
+            trimming.unlock();
+        }
+    }
+
+    // 64 bit fnv-1a over the number and the text
+    long key(String number, String text) {
+        long hash = FNV_OFFSET;
+        String normalized = number == null ? "" : numbers.normalize(number);
+        for (int i = 0; i < normalized.length(); i++) {
+            hash ^= normalized.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        // separate the number from the text
+        hash *= FNV_PRIME;
+        if (text != null) {
+            for (int i = 0; i < text.length(); i++) {
+                hash ^= text.charAt(i);
+                hash *= FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,136 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs refreshes on a single background thread, one at a time.
+ * Triggers that arrive while a refresh is queued or running are folded
+ * into the next one. Back to back refreshes are spaced at least
+ * minInterval apart, but a trigger never waits more than maxLatency
+ * for a refresh to start.
+ */
+public class RefreshScheduler {
+    private final Runnable refresh;
+    private final long minInterval;
+    private final long maxLatency;
+    private final ScheduledExecutorService executor;
+
+    // a refresh is queued on the executor and hasn't started yet
+    private boolean scheduled;
+    private boolean running;
+    // triggered while running; another refresh is needed afterwards
+    private boolean dirty;
+    // when the oldest trigger that hasn't been served yet came in
+    private long firstTrigger;
+    private long lastStart = Long.MIN_VALUE / 2;
+
+    private long triggers;
+    private long runs;
+    private long coalesced;
+    private long totalLatency;
+    private long maxObservedLatency;
+
+    private final Runnable runner = new Runnable() {
+        @Override
+        public void run() {
+            runRefresh();
+        }
+    };
+
+    public RefreshScheduler(Runnable refresh, long minInterval, long maxLatency) {
+        this.refresh = refresh;
+        this.minInterval = minInterval;
+        this.maxLatency = maxLatency;
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BabelRefresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // ask for a refresh. safe to call from any thread.
+    public synchronized void trigger() {
+        long now = now();
+        triggers++;
+        if (running) {
+            if (dirty) {
+                coalesced++;
+            }
+            else {
+                dirty = true;
+                firstTrigger = now;
+            }
+            return;
+        }
+        if (scheduled) {
+            coalesced++;
+            return;
+        }
+        firstTrigger = now;
+        schedule(now);
+    }
+
+    // must hold the lock
+    private void schedule(long now) {
+        long at = Math.max(now, lastStart + minInterval);
+        at = Math.min(at, firstTrigger + maxLatency);
+        scheduled = true;
+        try {
+            executor.schedule(runner, Math.max(0, at - now), TimeUnit.MILLISECONDS);
+        }
+        catch (Exception e) {
+            // shut down
+            scheduled = false;
+        }
+    }
+
+    private void runRefresh() {
+        synchronized (this) {
+            long now = now();
+            scheduled = false;
+            running = true;
+            lastStart = now;
+            runs++;
+            long latency = now - firstTrigger;
+            totalLatency += latency;
+            maxObservedLatency = Math.max(maxObservedLatency, latency);
+        }
+
+        try {
+            refresh.run();
+        }
+        catch (Exception e) {
+            // keep the scheduler alive for the next trigger
+        }
+        finally {
+            synchronized (this) {
+                running = false;
+                if (dirty) {
+                    dirty = false;
+                    schedule(now());
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("refresh scheduler: min interval=" + minInterval + "ms max latency=" + maxLatency + "ms");
+        writer.println("  triggers=" + triggers + " runs=" + runs + " coalesced=" + coalesced);
+        writer.println("  trigger to start avg=" + (runs == 0 ? 0 : totalLatency / runs) + "ms max=" + maxObservedLatency + "ms");
+    }
+}
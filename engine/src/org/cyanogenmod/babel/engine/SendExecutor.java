@@ -0,0 +1,274 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded executor for outgoing sends.
+ * A fixed set of workers pulls from a bounded queue. Tasks with the same key
+ * (the destination number) run one at a time, in the order they were submitted,
+ * so messages to one recipient never race each other. When the queue is full,
+ * new tasks are rejected immediately rather than piling up threads.
+ *
+ * Every task has a priority: interactive sends go ahead of retries, and
+ * retries ahead of bulk sends. A destination is served at the priority of
+ * the task at its head, so a send still waits for anything already queued
+ * to the same number. Each task takes a token from the rate limiter before
+ * it runs, and the worker picks the most urgent destination only once it
+ * has the token.
+ */
+public class SendExecutor {
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_RETRY = 1;
+    public static final int PRIORITY_BULK = 2;
+    private static final String[] PRIORITY_NAMES = new String[] { "interactive", "retry", "bulk" };
+    private static final String[] WAIT_STAGES = new String[PRIORITY_NAMES.length];
+    static {
+        for (int i = 0; i < PRIORITY_NAMES.length; i++)
+            WAIT_STAGES[i] = "wait " + PRIORITY_NAMES[i];
+    }
+
+    public static abstract class Task {
+        long enqueued;
+        int priority;
+
+        // run the send. called on a worker thread.
+        public abstract void run();
+
+        // the queue was full.
+        public abstract void reject();
+
+        // the executor was shut down before the task could run.
+        // whatever the task stands for should be left for next time.
+        public void abandon() {
+        }
+    }
+
+    // all pending tasks for a single destination
+    private static class Lane {
+        final String key;
+        final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+        // a lane is active while it is in the ready queue or being run by a worker
+        boolean active;
+
+        Lane(String key) {
+            this.key = key;
+        }
+    }
+
+    private final int capacity;
+    private final HashMap<String, Lane> lanes = new HashMap<String, Lane>();
+    // lanes waiting for a worker, by the priority of their first task
+    private final ArrayList<ArrayDeque<Lane>> ready = new ArrayList<ArrayDeque<Lane>>(PRIORITY_NAMES.length);
+    private final TokenBucket limiter;
+    private final Thread[] workers;
+    private int pending;
+    private boolean shutdown;
+    private volatile StageListener stageListener;
+
+    final AtomicLong submitted = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong completed = new AtomicLong();
+    final AtomicLong totalWait = new AtomicLong();
+    final AtomicLong maxWait = new AtomicLong();
+    final AtomicLongArray priorityCompleted = new AtomicLongArray(PRIORITY_NAMES.length);
+    final AtomicLongArray priorityWait = new AtomicLongArray(PRIORITY_NAMES.length);
+    final AtomicLongArray priorityMaxWait = new AtomicLongArray(PRIORITY_NAMES.length);
+    private int maxDepth;
+
+    public SendExecutor(int workerCount, int capacity) {
+        this(workerCount, capacity, new TokenBucket(0, 1));
+    }
+
+    public SendExecutor(int workerCount, int capacity, TokenBucket limiter) {
+        this.capacity = capacity;
+        this.limiter = limiter;
+        for (int i = 0; i < PRIORITY_NAMES.length; i++)
+            ready.add(new ArrayDeque<Lane>());
+        workers = new Thread[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread("BabelSend-" + i) {
+                @Override
+                public void run() {
+                    work();
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    // queue wait for each priority shows up as a "wait <priority>" stage
+    public void setStageListener(StageListener stageListener) {
+        this.stageListener = stageListener;
+    }
+
+    public boolean submit(String key, Task task) {
+        return submit(key, PRIORITY_INTERACTIVE, task);
+    }
+
+    // queue a task behind any other tasks with the same key.
+    // returns false, and rejects the task, if the queue is full,
+    // or abandons it if the executor has been shut down.
+    public boolean submit(String key, int priority, Task task) {
+        submitted.incrementAndGet();
+        task.enqueued = System.nanoTime();
+        task.priority = Math.max(0, Math.min(PRIORITY_NAMES.length - 1, priority));
+        if (key == null)
+            key = "";
+
+        boolean stopped;
+        synchronized (this) {
+            stopped = shutdown;
+            if (!stopped && pending < capacity) {
+                pending++;
+                maxDepth = Math.max(maxDepth, pending);
+                Lane lane = lanes.get(key);
+                if (lane == null) {
+                    lane = new Lane(key);
+                    lanes.put(key, lane);
+                }
+                lane.tasks.add(task);
+                if (!lane.active) {
+                    lane.active = true;
+                    makeReady(lane);
+                }
+                return true;
+            }
+        }
+
+        if (stopped) {
+            task.abandon();
+            return false;
+        }
+        rejected.incrementAndGet();
+        task.reject();
+        return false;
+    }
+
+    // must hold the lock
+    private void makeReady(Lane lane) {
+        ready.get(lane.tasks.peek().priority).add(lane);
+        notify();
+    }
+
+    // must hold the lock
+    private boolean hasReady() {
+        for (ArrayDeque<Lane> queue: ready) {
+            if (!queue.isEmpty())
+                return true;
+        }
+        return false;
+    }
+
+    private void work() {
+        while (true) {
+            Lane lane = null;
+            Task task;
+            try {
+                synchronized (this) {
+                    while (!hasReady())
+                        wait();
+                }
+                // wait for the rate limiter, then take whatever is most urgent by now
+                limiter.acquire();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                for (ArrayDeque<Lane> queue: ready) {
+                    lane = queue.poll();
+                    if (lane != null)
+                        break;
+                }
+                task = lane == null ? null : lane.tasks.poll();
+            }
+            if (lane == null) {
+                // another worker got there first
+                limiter.refund();
+                continue;
+            }
+
+            if (task != null) {
+                long waitNanos = System.nanoTime() - task.enqueued;
+                long wait = waitNanos / 1000000;
+                totalWait.addAndGet(wait);
+                long max;
+                while (wait > (max = maxWait.get()) && !maxWait.compareAndSet(max, wait));
+                priorityCompleted.incrementAndGet(task.priority);
+                priorityWait.addAndGet(task.priority, wait);
+                while (wait > (max = priorityMaxWait.get(task.priority)) && !priorityMaxWait.compareAndSet(task.priority, max, wait));
+                StageListener listener = stageListener;
+                if (listener != null)
+                    listener.onStage(WAIT_STAGES[task.priority], waitNanos);
+
+                try {
+                    task.run();
+                }
+                catch (Exception e) {
+                    // a misbehaving task must not take the worker down with it
+                }
+                completed.incrementAndGet();
+            }
+
+            // hand the lane back if there is more work queued for this destination,
+            // otherwise retire it.
+            synchronized (this) {
+                if (task != null)
+                    pending--;
+                if (lane.tasks.isEmpty()) {
+                    lane.active = false;
+                    lanes.remove(lane.key);
+                }
+                else {
+                    makeReady(lane);
+                }
+            }
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return pending;
+    }
+
+    // stop the workers and abandon anything that has not started yet.
+    public void shutdown() {
+        ArrayDeque<Task> dropped = new ArrayDeque<Task>();
+        synchronized (this) {
+            shutdown = true;
+            for (Lane lane: lanes.values()) {
+                dropped.addAll(lane.tasks);
+                lane.tasks.clear();
+            }
+            pending -= dropped.size();
+        }
+        for (Thread worker: workers)
+            worker.interrupt();
+        for (Task task: dropped)
+            task.abandon();
+    }
+
+    public void dump(PrintWriter writer) {
+        long done = completed.get();
+        int depth;
+        int max;
+        synchronized (this) {
+            depth = pending;
+            max = maxDepth;
+        }
+        writer.println("send executor: workers=" + workers.length + " capacity=" + capacity);
+        writer.println("  queue depth=" + depth + " max=" + max);
+        writer.println("  submitted=" + submitted.get() + " completed=" + done + " rejected=" + rejected.get());
+        writer.println("  wait avg=" + (done == 0 ? 0 : totalWait.get() / done) + "ms max=" + maxWait.get() + "ms");
+        for (int i = 0; i < PRIORITY_NAMES.length; i++) {
+            long count = priorityCompleted.get(i);
+            writer.println("  " + PRIORITY_NAMES[i] + " completed=" + count + " wait avg=" + (count == 0 ? 0 : priorityWait.get(i) / count) + "ms max=" + priorityMaxWait.get(i) + "ms");
+        }
+        limiter.dump(writer);
+    }
+}
@@ -0,0 +1,12 @@
+package org.cyanogenmod.babel.engine;
+
+/**
+ * Turns incoming google voice messages into incoming sms events.
+ */
+public interface SmsSynthesizer {
+    // queue an incoming message. messages from one sender arrive in date order.
+    void add(String address, String text, long date);
+
+    // deliver everything queued so far.
+    void flush();
+}
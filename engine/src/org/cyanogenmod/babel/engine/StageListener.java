@@ -0,0 +1,21 @@
+package org.cyanogenmod.babel.engine;
+
+/**
+ * Hears how long each step of a send or refresh took.
+ * Called on whatever thread did the work, so implementations must be thread safe.
+ */
+public interface StageListener {
+    String TOKEN = "token";
+    String RNRSE = "rnrse";
+    String SEND = "send";
+    String FETCH = "fetch";
+    String PARSE = "parse";
+    // a whole refresh, from token to saved state
+    String REFRESH = "refresh";
+    // provider inserts, synthesis and saving state for one refresh
+    String WRITE = "write";
+    // from an outgoing sms reaching the app to its first send request going out
+    String HANDOFF = "handoff";
+
+    void onStage(String stage, long nanos);
+}
@@ -0,0 +1,15 @@
+package org.cyanogenmod.babel.engine;
+
+import java.util.Map;
+
+/**
+ * Small persistent key/value store for sync state:
+ * the watermark, http validators and conversation cursors.
+ */
+public interface StateStore {
+    // returns null if the key isn't set.
+    String get(String key);
+
+    // apply all of the values at once. a null value removes the key.
+    void put(Map<String, String> values);
+}
@@ -0,0 +1,385 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Google voice sync and send, without any ties to android.
+ * Everything platform specific comes in through the transport, credentials,
+ * state store, message store, sms synthesizer and outbox store.
+ */
+public class SyncEngine {
+    private static final Logger LOG = Logger.getLogger("Babel");
+    // set once the first sync's write has gone through
+    static final String SYNCED = "synced";
+
+    public static class Config {
+        public int sendWorkers = 2;
+        public int sendQueue = 64;
+        public int sendAttempts = 6;
+        // steady sends per second, and how many can go at once after a lull.
+        // a rate of 0 doesn't limit.
+        public double sendRate = 1;
+        public int sendBurst = 5;
+        public long sendRetryDelay = 2000;
+        public long sendRetryMaxDelay = 5 * 60 * 1000;
+        public long refreshInterval = 2000;
+        public long refreshLatency = 5000;
+        public int recentSentCapacity = 64;
+        public long recentSentTtl = 30 * 60 * 1000;
+        public int backfillRate = 50;
+        public long backfillRetryDelay = 60 * 1000;
+        public long pollMinInterval = 30 * 1000;
+        public long pollMaxInterval = 15 * 60 * 1000;
+        public long pollPause = 10 * 60 * 1000;
+        public int numberCache = 512;
+        // refreshes that can be parsed and waiting to be written; 0 writes inline
+        public int writeDepth = 2;
+    }
+
+    private final VoiceTransport transport;
+    private final Credentials credentials;
+    private final StateStore state;
+    private final NumberNormalizer numbers;
+    private final RecentSentIndex recentSent;
+    private final SyncProcessor processor;
+    private final WriteStage writeStage;
+    private final SendExecutor sendExecutor;
+    private final Outbox outbox;
+    private final RefreshScheduler refreshScheduler;
+    private final Backfill backfill;
+    private final AdaptivePoller poller;
+    private volatile StageListener stageListener;
+    private volatile KeepAwake keepAwake = KeepAwake.NONE;
+
+    // where the fetch side is: everything up to here has been parsed and
+    // handed to the write stage, though maybe not saved yet. reloaded from
+    // the state store whenever the write stage's generation changes.
+    private int loadedGeneration = -1;
+    private long fetchedTimestamp;
+    private boolean fetchedSynced;
+    private String fetchedEtag;
+    private String fetchedLastModified;
+    private ConversationCursors conversationCursors;
+
+    public SyncEngine(Config config, VoiceTransport transport, Credentials credentials, StateStore state, MessageStore store, SmsSynthesizer synthesizer, OutboxStore outboxStore) {
+        this(config, transport, credentials, state, store, synthesizer, outboxStore, new NumberNormalizer(config.numberCache));
+    }
+
+    // numbers can be shared with other engines, and anything else that needs
+    // to agree with them on what a number looks like.
+    public SyncEngine(Config config, VoiceTransport transport, Credentials credentials, StateStore state, MessageStore store, SmsSynthesizer synthesizer, OutboxStore outboxStore, NumberNormalizer numbers) {
+        this.transport = transport;
+        this.credentials = credentials;
+        this.state = state;
+        this.numbers = numbers;
+        recentSent = new RecentSentIndex(config.recentSentCapacity, config.recentSentTtl, numbers);
+        processor = new SyncProcessor(store, synthesizer, recentSent, numbers);
+        writeStage = new WriteStage(config.writeDepth);
+        backfill = new Backfill(transport, credentials, state, store, numbers, config.backfillRate, config.backfillRetryDelay);
+        sendExecutor = new SendExecutor(config.sendWorkers, config.sendQueue, new TokenBucket(config.sendRate, config.sendBurst));
+        outbox = new Outbox(outboxStore, sendExecutor, new Outbox.Sender() {
+            @Override
+            public void send(Outbox.Entry entry) throws Exception {
+                KeepAwake awake = keepAwake;
+                awake.acquire();
+                try {
+                    // only the first attempt says anything about the handoff
+                    sendText(entry.address, entry.body, entry.attempts == 0 ? entry.received : 0, entry.handoff);
+                }
+                finally {
+                    awake.release();
+                }
+            }
+        }, config.sendAttempts, config.sendRetryDelay, config.sendRetryMaxDelay);
+
+        // notification storms get folded into as few refreshes as possible
+        refreshScheduler = new RefreshScheduler(new Runnable() {
+            @Override
+            public void run() {
+                KeepAwake awake = keepAwake;
+                awake.acquire();
+                try {
+                    poller.onRefreshed(refresh());
+                }
+                finally {
+                    awake.release();
+                }
+            }
+        }, config.refreshInterval, config.refreshLatency);
+
+        // in case the notifications that should trigger refreshes don't come
+        poller = new AdaptivePoller(new Runnable() {
+            @Override
+            public void run() {
+                refreshScheduler.trigger();
+            }
+        }, config.pollMinInterval, config.pollMaxInterval, config.pollPause);
+    }
+
+    public void setStageListener(StageListener stageListener) {
+        this.stageListener = stageListener;
+        sendExecutor.setStageListener(stageListener);
+    }
+
+    // held for each refresh and each send attempt, not while waiting between them
+    public void setKeepAwake(KeepAwake keepAwake) {
+        this.keepAwake = keepAwake;
+    }
+
+    // the timer for fallback polls, which has to go off in deep sleep too.
+    // set it before start().
+    public void setPollAlarm(Alarm alarm) {
+        poller.setAlarm(alarm);
+    }
+
+    // messages that made it out to google voice
+    public long getSentCount() {
+        return outbox.sent.get();
+    }
+
+    private void stage(String stage, long start) {
+        StageListener listener = stageListener;
+        if (listener != null)
+            listener.onStage(stage, System.nanoTime() - start);
+    }
+
+    private String getAuthToken() throws Exception {
+        long start = System.nanoTime();
+        String authToken = credentials.getAuthToken();
+        stage(StageListener.TOKEN, start);
+        return authToken;
+    }
+
+    private void transportSend(String authToken, String rnrse, String destAddr, String text) throws Exception {
+        long start = System.nanoTime();
+        transport.send(authToken, rnrse, destAddr, text);
+        stage(StageListener.SEND, start);
+    }
+
+    // pick up anything that didn't make it out before the engine last stopped,
+    // and any history still waiting to be copied over.
+    public void start() {
+        outbox.resume();
+        backfill.resume();
+        poller.start();
+    }
+
+    public void shutdown() {
+        poller.shutdown();
+        writeStage.shutdown();
+        backfill.shutdown();
+        refreshScheduler.shutdown();
+        outbox.shutdown();
+        sendExecutor.shutdown();
+    }
+
+    // send a text via google voice.
+    // the message goes into the outbox, which keeps trying until it goes
+    // out or runs out of attempts, and only then calls back.
+    public void send(String destAddr, String text, Outbox.Callback callback) {
+        send(destAddr, text, System.nanoTime(), callback);
+    }
+
+    // received is System.nanoTime() when the text reached the app, so the
+    // time until its first send request shows up as the handoff stage.
+    // the number is normalized first, so texts to one contact share a send
+    // lane and match their echo however the dialer wrote the number.
+    public void send(String destAddr, String text, long received, Outbox.Callback callback) {
+        send(destAddr, text, received, StageListener.HANDOFF, callback);
+    }
+
+    // the handoff is recorded under the given stage instead
+    public void send(String destAddr, String text, long received, String handoff, Outbox.Callback callback) {
+        outbox.enqueue(numbers.normalize(destAddr), text, received, handoff, callback);
+    }
+
+    // make one attempt at sending a text via google voice.
+    // received is when the text reached the app, or 0 for a retry,
+    // and handoff the stage to record the wait since then under.
+    void sendText(String destAddr, String text, long received, String handoff) throws Exception {
+        // grab the auth token and wacko opaque routing token thing.
+        // these are normally cached.
+        String authToken = getAuthToken();
+        try {
+            String rnrse = credentials.getRnrSe();
+            if (rnrse == null)
+                rnrse = fetchRnrSe(authToken);
+
+            if (received != 0)
+                stage(handoff, received);
+            try {
+                transportSend(authToken, rnrse, destAddr, text);
+            }
+            catch (AuthException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                // on failure, fetch info and try again
+                LOG.log(Level.FINE, "send error", e);
+                rnrse = fetchRnrSe(authToken);
+                transportSend(authToken, rnrse, destAddr, text);
+            }
+
+            // note that we recently sent this message
+            // for round trip tracking
+            recentSent.add(destAddr, text);
+            poller.onActivity();
+        }
+        catch (AuthException e) {
+            credentials.invalidateAuthToken(authToken);
+            throw e;
+        }
+    }
+
+    private String fetchRnrSe(String authToken) throws Exception {
+        long start = System.nanoTime();
+        String rnrse = transport.fetchRnrSe(authToken);
+        stage(StageListener.RNRSE, start);
+        credentials.setRnrSe(rnrse);
+        return rnrse;
+    }
+
+    // something changed on the server; refresh soon.
+    public void requestRefresh() {
+        poller.onEvent();
+        refreshScheduler.trigger();
+    }
+
+    // whether requestRefresh() can be expected when something changes.
+    // while it can, and has been lately, the poller stays out of the way.
+    public void setNotificationsConnected(boolean connected) {
+        poller.setConnected(connected);
+    }
+
+    // wait until everything refreshed so far is written and saved
+    public void awaitWrites() throws InterruptedException {
+        writeStage.awaitAll();
+    }
+
+    // refresh the messages that were on the server.
+    // returns whether there were any new ones.
+    // one fetch at a time; the writes can trail behind, see WriteStage.
+    public synchronized boolean refresh() {
+        if (credentials.getAccount() == null)
+            return false;
+
+        long began = System.nanoTime();
+        boolean handedOff = false;
+        String authToken = null;
+        try {
+            // tokens!
+            authToken = getAuthToken();
+
+            // pick up from wherever the last fetch left off, unless its
+            // writes failed; then go back to what was actually saved.
+            int generation = writeStage.getGeneration();
+            if (generation != loadedGeneration) {
+                String saved = state.get("timestamp");
+                fetchedTimestamp = saved == null ? 0 : Long.parseLong(saved);
+                // state from before the flag had a watermark instead
+                fetchedSynced = fetchedTimestamp != 0 || state.get(SYNCED) != null;
+                fetchedEtag = state.get("messages_etag");
+                fetchedLastModified = state.get("messages_last_modified");
+                conversationCursors = new ConversationCursors(state);
+                loadedGeneration = generation;
+            }
+            long timestamp = fetchedTimestamp;
+            // an account with no history keeps a watermark of 0,
+            // so whether the first sync happened is saved on its own
+            final boolean first = !fetchedSynced;
+
+            // ask for the message list only if it changed since the last sync
+            long start = System.nanoTime();
+            VoiceTransport.MessagesResponse response = transport.fetchMessages(authToken,
+            first ? null : fetchedEtag,
+            first ? null : fetchedLastModified);
+            stage(StageListener.FETCH, start);
+            if (response == null)
+                return false;
+
+            // stream the payload, keeping only what is newer than the last sync,
+            // and skipping conversations that haven't changed. the first sync
+            // keeps nothing; it only needs to know where the history ends.
+            final MessageParser.Result result;
+            start = System.nanoTime();
+            try {
+                InputStreamReader in = new InputStreamReader(response.body, "UTF-8");
+                result = first ? MessageParser.scan(in) : MessageParser.parse(in, timestamp, conversationCursors);
+            }
+            finally {
+                response.body.close();
+            }
+            stage(StageListener.PARSE, start);
+
+            final HashMap<String, String> updates = new HashMap<String, String>();
+            if (first) {
+                // everything so far is history: leave it to the backfill,
+                // and only treat messages after this point as live.
+                Backfill.begin(updates, result.max);
+                updates.put(SYNCED, "true");
+            }
+            updates.put("timestamp", String.valueOf(result.max));
+            updates.put("messages_etag", response.etag);
+            updates.put("messages_last_modified", response.lastModified);
+            conversationCursors.update(result.seen, updates);
+
+            // the next fetch only wants what comes after this one
+            fetchedTimestamp = result.max;
+            fetchedSynced = true;
+            fetchedEtag = response.etag;
+            fetchedLastModified = response.lastModified;
+
+            // insert outgoing messages that were not sent via this phone,
+            // and synthesize the rest. everything in here is newer than
+            // anything queued before it, so dates stay in order.
+            final long refreshBegan = began;
+            writeStage.submit(generation, new WriteStage.Batch() {
+                @Override
+                public void write() throws Exception {
+                    KeepAwake awake = keepAwake;
+                    awake.acquire();
+                    try {
+                        long start = System.nanoTime();
+                        if (!first)
+                            processor.process(result);
+                        state.put(updates);
+                        stage(StageListener.WRITE, start);
+                        if (first)
+                            backfill.resume();
+                    }
+                    finally {
+                        awake.release();
+                    }
+                    stage(StageListener.REFRESH, refreshBegan);
+                }
+            });
+            handedOff = true;
+            return !first && !result.conversations.isEmpty();
+        }
+        catch (AuthException e) {
+            LOG.log(Level.SEVERE, "Auth token rejected while refreshing messages", e);
+            credentials.invalidateAuthToken(authToken);
+        }
+        catch (Exception e) {
+            LOG.log(Level.SEVERE, "Error refreshing messages", e);
+        }
+        finally {
+            if (!handedOff)
+                stage(StageListener.REFRESH, began);
+        }
+        return false;
+    }
+
+    public void dump(PrintWriter writer) {
+        sendExecutor.dump(writer);
+        outbox.dump(writer);
+        refreshScheduler.dump(writer);
+        backfill.dump(writer);
+        writeStage.dump(writer);
+        poller.dump(writer);
+    }
+}
@@ -0,0 +1,64 @@
+package org.cyanogenmod.babel.engine;
+
+/**
+ * Applies the new messages from a refresh: outgoing messages that were not
+ * sent from this phone go into the message store, incoming messages get
+ * synthesized as sms. History from before the first sync is the backfill's job.
+ */
+public class SyncProcessor {
+    public static final int PROVIDER_INCOMING_SMS = 1;
+    public static final int PROVIDER_OUTGOING_SMS = 2;
+
+    private final MessageStore store;
+    private final SmsSynthesizer synthesizer;
+    private final RecentSentIndex recentSent;
+    private final NumberNormalizer numbers;
+
+    public SyncProcessor(MessageStore store, SmsSynthesizer synthesizer, RecentSentIndex recentSent, NumberNormalizer numbers) {
+        this.store = store;
+        this.synthesizer = synthesizer;
+        this.recentSent = recentSent;
+        this.numbers = numbers;
+    }
+
+    // all new messages, oldest first, so the events get added in the same order.
+    // each conversation's messages are already in date order.
+    public static MessageMerger merge(MessageParser.Result result) {
+        return new MessageMerger(result.conversations);
+    }
+
+    // the sms provider type for a google voice message, or 0 if it isn't a text
+    public static int providerType(Message message) {
+        if (message.type == Message.VOICE_INCOMING_SMS)
+            return PROVIDER_INCOMING_SMS;
+        if (message.type == Message.VOICE_OUTGOING_SMS)
+            return PROVIDER_OUTGOING_SMS;
+        return 0;
+    }
+
+    public void process(MessageParser.Result result) {
+        for (Message message: merge(result)) {
+            if (message.phoneNumber == null)
+                continue;
+            if (message.message == null)
+                continue;
+            // one form per contact, so the provider keeps them in one thread
+            String number = numbers.normalize(message.phoneNumber);
+
+            // sync up outgoing messages
+            if (message.type == Message.VOICE_OUTGOING_SMS) {
+                if (!recentSent.remove(number, message.message))
+                    store.add(number, message.message, PROVIDER_OUTGOING_SMS, message.date);
+                continue;
+            }
+
+            if (message.type != Message.VOICE_INCOMING_SMS)
+                continue;
+            // synthesize BROADCAST_SMS events, grouped by sender
+            synthesizer.add(number, message.message, message.date);
+        }
+        synthesizer.flush();
+        // make sure everything is in the store before the caller moves the watermark
+        store.flush();
+    }
+}
@@ -0,0 +1,78 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.PrintWriter;
+
+/**
+ * Token bucket rate limiter. Tokens come in at a steady rate per second,
+ * and up to burst of them can be saved up, so a short burst goes straight
+ * through but a long one is held to the steady rate. A rate of 0 or less
+ * means no limit.
+ */
+public class TokenBucket {
+    private final double rate;
+    private final int burst;
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    private long acquired;
+    private long throttled;
+    private long throttledNanos;
+
+    public TokenBucket(double rate, int burst) {
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        tokens = this.burst;
+    }
+
+    // must hold the lock
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+        refilled = now;
+    }
+
+    // take a token, waiting for one if the bucket is empty
+    public synchronized void acquire() throws InterruptedException {
+        acquired++;
+        if (rate <= 0)
+            return;
+        refill();
+        if (tokens >= 1) {
+            tokens--;
+            return;
+        }
+
+        throttled++;
+        long start = System.nanoTime();
+        while (true) {
+            // sleep until the next token is due, letting refunds wake us early
+            long wait = (long)Math.ceil((1 - tokens) * 1000 / rate);
+            wait(Math.max(1, wait));
+            refill();
+            if (tokens >= 1) {
+                tokens--;
+                throttledNanos += System.nanoTime() - start;
+                return;
+            }
+        }
+    }
+
+    // give back a token that ended up not being used
+    public synchronized void refund() {
+        acquired--;
+        if (rate <= 0)
+            return;
+        refill();
+        tokens = Math.min(burst, tokens + 1);
+        notify();
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        if (rate <= 0) {
+            writer.println("rate limit: none");
+            return;
+        }
+        writer.println("rate limit: " + rate + "/s burst=" + burst);
+        writer.println("  acquired=" + acquired + " throttled=" + throttled + " throttled time=" + throttledNanos / 1000000 + "ms");
+    }
+}
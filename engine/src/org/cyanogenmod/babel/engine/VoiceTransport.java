@@ -0,0 +1,35 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.InputStream;
+
+/**
+ * The google voice endpoints sync and send talk to.
+ * Implementations throw AuthException when the server rejects the auth token.
+ */
+public interface VoiceTransport {
+    class MessagesResponse {
+        public final InputStream body;
+        public final String etag;
+        public final String lastModified;
+
+        public MessagesResponse(InputStream body, String etag, String lastModified) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    // /voice/request/user: fetch the weirdo opaque token google voice needs to send.
+    String fetchRnrSe(String authToken) throws Exception;
+
+    // /voice/sms/send/
+    void send(String authToken, String rnrse, String number, String text) throws Exception;
+
+    // /voice/request/messages, conditional on the validators from the last fetch.
+    // returns null if nothing changed.
+    MessagesResponse fetchMessages(String authToken, String etag, String lastModified) throws Exception;
+
+    // /voice/request/messages?page=n, 1 based, most recently active conversations first.
+    // past the last page the message list is empty.
+    InputStream fetchPage(String authToken, int page) throws Exception;
+}
@@ -0,0 +1,170 @@
+package org.cyanogenmod.babel.engine;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The write half of refresh, on its own thread, so the next fetch and parse
+ * can go ahead while provider inserts and sms synthesis from the last one
+ * are still running. Batches are written one at a time, strictly in the
+ * order they were submitted. The queue is bounded, and submit() blocks when
+ * it is full, so the fetch side never gets more than depth batches ahead.
+ * With depth 0 there's no thread, and submit() writes the batch itself.
+ *
+ * When a batch fails, the generation moves on and everything still queued
+ * from the old generation is dropped: it was parsed against state that
+ * never got saved. The fetch side should reload from the state store
+ * whenever the generation changes.
+ *
+ * shutdown() drops whatever is still queued. Nothing is lost by it: a
+ * batch saves its watermark as part of being written, so the messages in
+ * a dropped batch are still above the saved watermark, and whatever
+ * refreshes from that state next fetches them again.
+ */
+public class WriteStage {
+    private static final Logger LOG = Logger.getLogger("Babel");
+
+    public interface Batch {
+        void write() throws Exception;
+    }
+
+    private static class Queued {
+        final int generation;
+        final Batch batch;
+        final long submitted = System.nanoTime();
+
+        Queued(int generation, Batch batch) {
+            this.generation = generation;
+            this.batch = batch;
+        }
+    }
+
+    private final int depth;
+    private final BlockingQueue<Queued> queue;
+    private final Thread thread;
+    private volatile int generation;
+    private volatile boolean shutdown;
+    // submitted and not yet written or dropped
+    private int outstanding;
+
+    final AtomicLong written = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong blockedNanos = new AtomicLong();
+    final AtomicLong queuedNanos = new AtomicLong();
+
+    public WriteStage(int depth) {
+        this.depth = Math.max(0, depth);
+        if (this.depth == 0) {
+            queue = null;
+            thread = null;
+            return;
+        }
+        queue = new ArrayBlockingQueue<Queued>(this.depth);
+        thread = new Thread("BabelWrite") {
+            @Override
+            public void run() {
+                try {
+                    while (!shutdown)
+                        write(queue.take());
+                }
+                catch (InterruptedException e) {
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    // queue a batch parsed against the given generation,
+    // waiting for room if the writer is behind.
+    public void submit(int generation, Batch batch) throws InterruptedException {
+        Queued queued = new Queued(generation, batch);
+        if (queue == null) {
+            write(queued);
+            return;
+        }
+        synchronized (this) {
+            outstanding++;
+        }
+        long start = System.nanoTime();
+        try {
+            queue.put(queued);
+        }
+        catch (InterruptedException e) {
+            done();
+            throw e;
+        }
+        blockedNanos.addAndGet(System.nanoTime() - start);
+        // the writer may be gone already, and this would wait forever
+        if (shutdown)
+            drain();
+    }
+
+    // wait until everything submitted so far is written or dropped
+    public synchronized void awaitAll() throws InterruptedException {
+        while (outstanding > 0)
+            wait();
+    }
+
+    // stop the writer, interrupting the batch it's on, if any. the rest
+    // are dropped, so awaitAll() doesn't wait on batches nobody will write.
+    public void shutdown() {
+        shutdown = true;
+        if (thread == null)
+            return;
+        thread.interrupt();
+        drain();
+    }
+
+    private void drain() {
+        ArrayList<Queued> drained = new ArrayList<Queued>();
+        queue.drainTo(drained);
+        for (int i = 0; i < drained.size(); i++) {
+            dropped.incrementAndGet();
+            done();
+        }
+    }
+
+    private void write(Queued queued) {
+        try {
+            if (queued.generation != generation) {
+                dropped.incrementAndGet();
+                return;
+            }
+            queuedNanos.addAndGet(System.nanoTime() - queued.submitted);
+            queued.batch.write();
+            written.incrementAndGet();
+        }
+        catch (Exception e) {
+            LOG.log(Level.SEVERE, "Error writing refresh", e);
+            failed.incrementAndGet();
+            generation++;
+        }
+        finally {
+            if (queue != null)
+                done();
+        }
+    }
+
+    private synchronized void done() {
+        outstanding--;
+        notifyAll();
+    }
+
+    public void dump(PrintWriter writer) {
+        long batches = Math.max(1, written.get());
+        writer.println("write stage: depth=" + depth + " generation=" + generation);
+        writer.println("  written=" + written.get() + " failed=" + failed.get() + " dropped=" + dropped.get());
+        writer.println("  queued avg=" + queuedNanos.get() / batches / 1000000 + "ms fetch blocked=" + blockedNanos.get() / 1000000 + "ms");
+    }
+}
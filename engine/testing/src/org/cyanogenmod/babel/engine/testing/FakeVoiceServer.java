@@ -0,0 +1,330 @@
+package org.cyanogenmod.babel.engine.testing;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.cyanogenmod.babel.engine.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Embeddable stand-in for the parts of google voice that Babel talks to:
+ * /voice/request/user, /voice/request/messages and /voice/sms/send/.
+ * Conversations live in memory. Sent texts show up in the message list as
+ * outgoing messages, deliver() adds incoming ones. The message list honors
+ * If-None-Match, so conditional fetches get a 304 until something changes,
+ * and is gzipped when the client asks for it. With ?page=n it lists
+ * PAGE_SIZE conversations per page, like the real thing; without it, unlike
+ * the real thing, it lists every conversation, so tests can't miss messages.
+ * Any auth token other than the one given is rejected with a 401.
+ * For load tests, every request can be delayed, and a fraction of them
+ * failed with a 500.
+ *
+ * FakeVoiceServer server = new FakeVoiceServer("token");
+ * server.start();
+ * new HttpVoiceTransport(server.getBaseUrl());
+ */
+public class FakeVoiceServer {
+    public static final String RNR_SE = "fake-rnr-se";
+    public static final int PAGE_SIZE = 10;
+
+    static {
+        // otherwise nagle holds back small response bodies until the
+        // client acks the headers, adding ~40ms to every keep-alive request.
+        // has to be set before the first HttpServer is created.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    public static class Sent {
+        public final String number;
+        public final String text;
+        public final long date;
+
+        Sent(String number, String text, long date) {
+            this.number = number;
+            this.text = text;
+            this.date = date;
+        }
+    }
+
+    private static class Conversation {
+        final String id;
+        final String number;
+        final ArrayList<Message> messages = new ArrayList<Message>();
+
+        Conversation(String id, String number) {
+            this.id = id;
+            this.number = number;
+        }
+    }
+
+    private final String authToken;
+    // keyed by number, most recently active last
+    private final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<String, Conversation>();
+    private final ArrayList<Sent> sent = new ArrayList<Sent>();
+    private HttpServer server;
+    private ExecutorService executor;
+    private long lastDate;
+    private int version;
+    private final Random random = new Random();
+    private volatile long latency;
+    private volatile double errorRate;
+
+    public FakeVoiceServer(String authToken) {
+        this.authToken = authToken;
+    }
+
+    // added to every request before it is handled
+    public void setLatency(long millis) {
+        latency = millis;
+    }
+
+    // fraction of requests, 0 to 1, that fail with a 500
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public void start() throws IOException {
+        start(0);
+    }
+
+    // port 0 picks any free port
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/voice/request/user", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (!admit(exchange))
+                    return;
+                JsonObject user = new JsonObject();
+                user.addProperty("r", RNR_SE);
+                respond(exchange, 200, user.toString());
+            }
+        });
+        server.createContext("/voice/request/messages", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (!admit(exchange))
+                    return;
+                String body;
+                String etag;
+                int page = 0;
+                String query = exchange.getRequestURI().getQuery();
+                if (query != null && query.startsWith("page="))
+                    page = Integer.parseInt(query.substring("page=".length()));
+                synchronized (FakeVoiceServer.this) {
+                    etag = "\"" + version + "\"";
+                    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                        exchange.sendResponseHeaders(304, -1);
+                        exchange.close();
+                        return;
+                    }
+                    body = messageList(page);
+                }
+                exchange.getResponseHeaders().set("ETag", etag);
+                String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (encoding != null && encoding.contains("gzip"))
+                    respondGzipped(exchange, body);
+                else
+                    respond(exchange, 200, body);
+            }
+        });
+        server.createContext("/voice/sms/send/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (!admit(exchange))
+                    return;
+                HashMap<String, String> form = readForm(exchange.getRequestBody());
+                JsonObject result = new JsonObject();
+                String number = form.get("phoneNumber");
+                String text = form.get("text");
+                boolean ok = RNR_SE.equals(form.get("_rnr_se")) && number != null && text != null;
+                if (ok) {
+                    synchronized (FakeVoiceServer.this) {
+                        long date = add(number, text, Message.VOICE_OUTGOING_SMS);
+                        sent.add(new Sent(number, text, date));
+                    }
+                }
+                result.addProperty("ok", ok);
+                respond(exchange, 200, result.toString());
+            }
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public void stop() {
+        if (server == null)
+            return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+    }
+
+    // what to hand to HttpVoiceTransport
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/voice";
+    }
+
+    // a text arrives from the given number. returns its date.
+    public synchronized long deliver(String from, String text) {
+        return add(from, text, Message.VOICE_INCOMING_SMS);
+    }
+
+    // everything that came in through /voice/sms/send/, oldest first
+    public synchronized List<Sent> getSent() {
+        return new ArrayList<Sent>(sent);
+    }
+
+    private long add(String number, String text, int type) {
+        Conversation conversation = conversations.remove(number);
+        if (conversation == null)
+            conversation = new Conversation("c" + number, number);
+        conversations.put(number, conversation);
+
+        // dates are unique and increasing, so the sync watermark never skips one
+        long date = Math.max(System.currentTimeMillis(), lastDate + 1);
+        lastDate = date;
+        Message message = new Message();
+        message.date = date;
+        message.phoneNumber = number;
+        message.message = text;
+        message.type = type;
+        conversation.messages.add(message);
+        version++;
+        return date;
+    }
+
+    // page 0 is everything
+    private String messageList(int page) {
+        JsonArray list = new JsonArray();
+        ArrayList<Conversation> all = new ArrayList<Conversation>(conversations.values());
+        int first = 0;
+        int count = all.size();
+        if (page > 0) {
+            first = (page - 1) * PAGE_SIZE;
+            count = Math.max(0, Math.min(PAGE_SIZE, all.size() - first));
+        }
+        // most recently active first, like the real thing
+        for (int i = all.size() - 1 - first; i >= all.size() - first - count; i--) {
+            Conversation conversation = all.get(i);
+            JsonArray children = new JsonArray();
+            Message last = null;
+            for (Message message: conversation.messages) {
+                JsonObject child = new JsonObject();
+                child.addProperty("startTime", String.valueOf(message.date));
+                child.addProperty("phoneNumber", message.phoneNumber);
+                child.addProperty("message", message.message);
+                child.addProperty("type", message.type);
+                children.add(child);
+                last = message;
+            }
+            JsonObject entry = new JsonObject();
+            entry.addProperty("id", conversation.id);
+            entry.addProperty("phoneNumber", conversation.number);
+            entry.addProperty("startTime", String.valueOf(last.date));
+            entry.addProperty("messageText", last.message);
+            entry.add("children", children);
+            list.add(entry);
+        }
+        JsonObject json = new JsonObject();
+        json.addProperty("totalSize", all.size());
+        json.add("messageList", list);
+        return json.toString();
+    }
+
+    // apply injected latency and errors, then check the auth token.
+    // returns false if the request has already been answered.
+    private boolean admit(HttpExchange exchange) throws IOException {
+        long delay = latency;
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double rate = errorRate;
+        boolean fail;
+        synchronized (random) {
+            fail = rate > 0 && random.nextDouble() < rate;
+        }
+        if (fail) {
+            exchange.getRequestBody().close();
+            respond(exchange, 500, "");
+            return false;
+        }
+
+        if (("GoogleLogin auth=" + authToken).equals(exchange.getRequestHeaders().getFirst("Authorization")))
+            return true;
+        respond(exchange, 401, "");
+        return false;
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static void respondGzipped(HttpExchange exchange, String body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(body.getBytes("UTF-8"));
+        gzip.close();
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(200, bytes.size());
+        OutputStream out = exchange.getResponseBody();
+        try {
+            bytes.writeTo(out);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static HashMap<String, String> readForm(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            bytes.write(buffer, 0, read);
+        in.close();
+
+        HashMap<String, String> form = new HashMap<String, String>();
+        for (String pair: bytes.toString("UTF-8").split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0)
+                continue;
+            form.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return form;
+    }
+}
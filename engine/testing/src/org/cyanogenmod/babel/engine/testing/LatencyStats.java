@@ -0,0 +1,60 @@
+package org.cyanogenmod.babel.engine.testing;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Keeps every latency sample so exact percentiles can be reported.
+ * Fine for load tests, far too heavy for anything long running.
+ */
+public class LatencyStats {
+    private long[] samples = new long[1024];
+    private int count;
+    private long items;
+
+    public void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    // one sample that covered several messages, like a batch insert
+    public synchronized void record(long nanos, int items) {
+        if (count == samples.length)
+            samples = Arrays.copyOf(samples, count * 2);
+        samples[count++] = nanos;
+        this.items += items;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public static void header(PrintStream out) {
+        out.printf("%-14s %8s %10s %10s %10s %10s %10s %12s%n", "stage", "samples", "messages", "p50 ms", "p95 ms", "p99 ms", "max ms", "messages/s");
+    }
+
+    // elapsed is the wall time of the whole run, for throughput
+    public synchronized void report(PrintStream out, String name, long elapsedNanos) {
+        if (count == 0) {
+            out.printf("%-14s %8d%n", name, 0);
+            return;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        out.printf("%-14s %8d %10d %10.2f %10.2f %10.2f %10.2f %12.1f%n", name, count, items,
+        millis(percentile(sorted, 0.50)),
+        millis(percentile(sorted, 0.95)),
+        millis(percentile(sorted, 0.99)),
+        millis(sorted[count - 1]),
+        items * 1e9 / Math.max(1, elapsedNanos));
+    }
+
+    // nearest rank
+    private static long percentile(long[] sorted, double p) {
+        int rank = (int)Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,272 @@
+package org.cyanogenmod.babel.engine.testing;
+
+import org.cyanogenmod.babel.engine.HttpVoiceTransport;
+import org.cyanogenmod.babel.engine.MemoryOutboxStore;
+import org.cyanogenmod.babel.engine.MemoryStateStore;
+import org.cyanogenmod.babel.engine.MessageStore;
+import org.cyanogenmod.babel.engine.Outbox;
+import org.cyanogenmod.babel.engine.SmsSynthesizer;
+import org.cyanogenmod.babel.engine.StageListener;
+import org.cyanogenmod.babel.engine.SyncEngine;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a SyncEngine against a FakeVoiceServer and reports latency
+ * percentiles and throughput for every stage of the send and receive paths.
+ *
+ * The send phase queues --sends texts of --size characters through the outbox,
+ * with --concurrency send workers. The receive phase has the server take in
+ * --receives texts, --batch at a time, refreshing after each batch. End to end
+ * latency is measured from enqueue to the sent callback, and from the server
+ * taking in a text to it being handed to the sms synthesizer.
+ * --provider-latency makes every insert and synthesis flush take that many
+ * ms, standing in for the provider and ISms binder calls, and --write-depth
+ * sets how far fetches can run ahead of writes (0 writes inline).
+ *
+ * java -cp babel-engine.jar:gson.jar org.cyanogenmod.babel.engine.testing.LoadGenerator \
+ *     --sends 2000 --concurrency 8 --latency 20 --errors 0.01
+ */
+public class LoadGenerator {
+    private static final String AUTH_TOKEN = "load-token";
+
+    private final Map<String, String> options;
+    private final PrintStream out;
+    private final FakeVoiceServer server = new FakeVoiceServer(AUTH_TOKEN);
+    private final ConcurrentHashMap<String, LatencyStats> stages = new ConcurrentHashMap<String, LatencyStats>();
+    // when the server took in each text of the receive phase
+    private final ConcurrentHashMap<String, Long> delivered = new ConcurrentHashMap<String, Long>();
+    private SyncEngine engine;
+    private HttpVoiceTransport transport;
+    private long providerLatency;
+
+    public LoadGenerator(Map<String, String> options, PrintStream out) {
+        this.options = options;
+        this.out = out;
+    }
+
+    private int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private double getDouble(String name, double defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private LatencyStats stats(String stage) {
+        LatencyStats stats = stages.get(stage);
+        if (stats == null) {
+            stages.putIfAbsent(stage, new LatencyStats());
+            stats = stages.get(stage);
+        }
+        return stats;
+    }
+
+    private void provider() {
+        if (providerLatency <= 0)
+            return;
+        try {
+            Thread.sleep(providerLatency);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // there's no provider or ISms behind these, so a batch is timed from its
+    // first add to its flush: the engine side cost of getting it out,
+    // plus --provider-latency.
+    private class TimedStore implements MessageStore {
+        int pending;
+        long start;
+
+        @Override
+        public synchronized void add(String number, String text, int type, long date) {
+            if (pending++ == 0)
+                start = System.nanoTime();
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (pending == 0)
+                return;
+            provider();
+            stats("insert").record(System.nanoTime() - start, pending);
+            pending = 0;
+        }
+    }
+
+    private class TimedSynthesizer implements SmsSynthesizer {
+        int pending;
+        long start;
+
+        @Override
+        public void add(String address, String text, long date) {
+            if (pending++ == 0)
+                start = System.nanoTime();
+            Long arrived = delivered.remove(text);
+            if (arrived != null)
+                stats("receive e2e").record(System.nanoTime() - arrived);
+        }
+
+        @Override
+        public void flush() {
+            if (pending == 0)
+                return;
+            provider();
+            stats("synthesize").record(System.nanoTime() - start, pending);
+            pending = 0;
+        }
+    }
+
+    private static String text(String prefix, int n, int size) {
+        StringBuilder text = new StringBuilder(size);
+        text.append(prefix).append(n).append(' ');
+        while (text.length() < size)
+            text.append('x');
+        return text.toString();
+    }
+
+    private static String number(int n) {
+        return "+1555" + String.format("%07d", n);
+    }
+
+    private void report(String phase, long elapsed, String... order) {
+        out.printf("%n%s: %.2f s%n", phase, elapsed / 1e9);
+        LatencyStats.header(out);
+        for (String stage: order) {
+            LatencyStats stats = stages.get(stage);
+            if (stats != null)
+                stats.report(out, stage, elapsed);
+        }
+        stages.clear();
+    }
+
+    public void run() throws Exception {
+        int sends = getInt("sends", 1000);
+        int receives = getInt("receives", 1000);
+        int batch = Math.max(1, getInt("batch", 100));
+        int history = getInt("history", 1000);
+        int numbers = Math.max(1, getInt("numbers", 50));
+        int size = getInt("size", 160);
+
+        server.setLatency(getInt("latency", 0));
+        server.setErrorRate(getDouble("errors", 0));
+        server.start();
+
+        SyncEngine.Config config = new SyncEngine.Config();
+        config.sendWorkers = getInt("concurrency", 4);
+        config.sendQueue = Math.max(config.sendQueue, sends);
+        config.sendAttempts = getInt("attempts", config.sendAttempts);
+        config.sendRetryDelay = getInt("retry-delay", 50);
+        config.sendRetryMaxDelay = 1000;
+        config.sendRate = getDouble("send-rate", 0);
+        config.sendBurst = getInt("send-burst", config.sendBurst);
+        // history is copied in the background; its inserts show up in whichever phase they land in
+        config.backfillRate = getInt("backfill-rate", 10000);
+        config.writeDepth = getInt("write-depth", config.writeDepth);
+        providerLatency = getInt("provider-latency", 0);
+        transport = new HttpVoiceTransport(server.getBaseUrl());
+        engine = new SyncEngine(config,
+        transport,
+        new StaticCredentials("load@example.com", AUTH_TOKEN),
+        new MemoryStateStore(),
+        new TimedStore(),
+        new TimedSynthesizer(),
+        new MemoryOutboxStore());
+        engine.setStageListener(new StageListener() {
+            @Override
+            public void onStage(String stage, long nanos) {
+                stats(stage).record(nanos);
+            }
+        });
+        engine.start();
+
+        try {
+            // initial sync just fills the message store
+            for (int i = 0; i < history; i++)
+                server.deliver(number(i % numbers), text("history ", i, size));
+            long start = System.nanoTime();
+            engine.refresh();
+            engine.awaitWrites();
+            report("initial sync of " + history, System.nanoTime() - start, StageListener.TOKEN, StageListener.FETCH, StageListener.PARSE, "insert");
+
+            send(sends, numbers, size);
+            receive(receives, batch, numbers, size);
+        }
+        finally {
+            engine.shutdown();
+            server.stop();
+        }
+    }
+
+    private void send(int sends, int numbers, int size) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(sends);
+        final AtomicInteger failed = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < sends; i++) {
+            final long enqueued = System.nanoTime();
+            engine.send(number(i % numbers), text("send ", i, size), new Outbox.Callback() {
+                @Override
+                public void onSent() {
+                    stats("send e2e").record(System.nanoTime() - enqueued);
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailed() {
+                    failed.incrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        if (!done.await(10, TimeUnit.MINUTES))
+            out.println("timed out waiting for sends");
+        long elapsed = System.nanoTime() - start;
+        report("send " + sends + ", " + failed.get() + " failed", elapsed, StageListener.TOKEN, StageListener.RNRSE, StageListener.HANDOFF, StageListener.SEND, "send e2e");
+        // cold and warm sends, by whether the connection pool likely had a live connection
+        PrintWriter writer = new PrintWriter(out);
+        transport.dump(writer);
+        writer.flush();
+    }
+
+    private void receive(int receives, int batch, int numbers, int size) throws InterruptedException {
+        long start = System.nanoTime();
+        int refreshes = 0;
+        for (int i = 0; i < receives; ) {
+            for (int end = Math.min(receives, i + batch); i < end; i++) {
+                String text = text("receive ", i, size);
+                delivered.put(text, System.nanoTime());
+                server.deliver(number(i % numbers), text);
+            }
+            engine.refresh();
+            refreshes++;
+        }
+        engine.awaitWrites();
+        long elapsed = System.nanoTime() - start;
+        String phase = "receive " + receives + " in " + refreshes + " refreshes";
+        if (!delivered.isEmpty())
+            phase += ", " + delivered.size() + " never synthesized";
+        report(phase, elapsed, StageListener.TOKEN, StageListener.FETCH, StageListener.PARSE, "insert", "synthesize", StageListener.WRITE, "receive e2e");
+    }
+
+    // --name value pairs
+    public static void main(String[] args) throws Exception {
+        LinkedHashMap<String, String> options = new LinkedHashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("expected --option: " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        new LoadGenerator(options, System.out).run();
+    }
+}
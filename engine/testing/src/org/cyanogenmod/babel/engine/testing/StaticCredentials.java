@@ -0,0 +1,42 @@
+package org.cyanogenmod.babel.engine.testing;
+
+import org.cyanogenmod.babel.engine.Credentials;
+
+/**
+ * Credentials with a fixed account and auth token, for running the engine
+ * against FakeVoiceServer.
+ */
+public class StaticCredentials implements Credentials {
+    private final String account;
+    private final String authToken;
+    private volatile String rnrse;
+
+    public StaticCredentials(String account, String authToken) {
+        this.account = account;
+        this.authToken = authToken;
+    }
+
+    @Override
+    public String getAccount() {
+        return account;
+    }
+
+    @Override
+    public String getAuthToken() {
+        return authToken;
+    }
+
+    @Override
+    public void invalidateAuthToken(String authToken) {
+    }
+
+    @Override
+    public String getRnrSe() {
+        return rnrse;
+    }
+
+    @Override
+    public void setRnrSe(String rnrse) {
+        this.rnrse = rnrse;
+    }
+}
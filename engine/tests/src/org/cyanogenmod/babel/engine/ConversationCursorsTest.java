@@ -0,0 +1,82 @@
+package org.cyanogenmod.babel.engine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConversationCursorsTest {
+    private static List<MessageParser.Conversation> seen(long... startTimes) {
+        ArrayList<MessageParser.Conversation> seen = new ArrayList<MessageParser.Conversation>();
+        for (int i = 0; i < startTimes.length; i++)
+            seen.add(new MessageParser.Conversation("c" + i, startTimes[i], startTimes[i] * 31));
+        return seen;
+    }
+
+    private static HashMap<String, String> update(StateStore state, List<MessageParser.Conversation> seen) {
+        HashMap<String, String> updates = new HashMap<String, String>();
+        new ConversationCursors(state).update(seen, updates);
+        state.put(updates);
+        return updates;
+    }
+
+    @Test
+    public void savesOnlyWhatMoved() {
+        MemoryStateStore state = new MemoryStateStore();
+        HashMap<String, String> updates = update(state, seen(100, 200, 300));
+        assertEquals("c0 c1 c2 ", updates.get(ConversationCursors.IDS));
+        assertEquals(4, updates.size());
+
+        // one conversation got a message
+        updates = update(state, seen(100, 250, 300));
+        assertEquals(1, updates.size());
+        assertEquals("250 7750", updates.get(ConversationCursors.PREFIX + "c1"));
+
+        // nothing did
+        updates = update(state, seen(100, 250, 300));
+        assertTrue(updates.isEmpty());
+
+        ConversationCursors cursors = new ConversationCursors(state);
+        assertTrue(cursors.isUnchanged("c1", 250, 7750));
+        assertFalse(cursors.isUnchanged("c1", 200, 6200));
+    }
+
+    @Test
+    public void forgetsConversationsThatAreGone() {
+        MemoryStateStore state = new MemoryStateStore();
+        update(state, seen(100, 200, 300));
+        List<MessageParser.Conversation> seen = seen(100, 200, 300).subList(0, 2);
+        HashMap<String, String> updates = update(state, seen);
+        assertEquals("c0 c1 ", updates.get(ConversationCursors.IDS));
+        assertTrue(updates.containsKey(ConversationCursors.PREFIX + "c2"));
+        assertNull(state.get(ConversationCursors.PREFIX + "c2"));
+        assertFalse(new ConversationCursors(state).isUnchanged("c2", 300, 9300));
+    }
+
+    @Test
+    public void readsAndReplacesTheOldSingleValue() {
+        MemoryStateStore state = new MemoryStateStore();
+        HashMap<String, String> legacy = new HashMap<String, String>();
+        legacy.put(ConversationCursors.LEGACY, "c0 100 3100\nc1 200 6200\n");
+        state.put(legacy);
+
+        ConversationCursors cursors = new ConversationCursors(state);
+        assertTrue(cursors.isUnchanged("c0", 100, 3100));
+        assertTrue(cursors.isUnchanged("c1", 200, 6200));
+
+        HashMap<String, String> updates = new HashMap<String, String>();
+        cursors.update(seen(100, 200), updates);
+        state.put(updates);
+        assertNull(state.get(ConversationCursors.LEGACY));
+        assertEquals("c0 c1 ", state.get(ConversationCursors.IDS));
+        ConversationCursors reloaded = new ConversationCursors(state);
+        assertTrue(reloaded.isUnchanged("c0", 100, 3100));
+        assertTrue(reloaded.isUnchanged("c1", 200, 6200));
+    }
+}
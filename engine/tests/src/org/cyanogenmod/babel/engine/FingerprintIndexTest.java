@@ -0,0 +1,169 @@
+package org.cyanogenmod.babel.engine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FingerprintIndexTest {
+    private static class RecordingSynthesizer implements SmsSynthesizer {
+        final List<String> pending = new ArrayList<String>();
+        final List<String> delivered = new ArrayList<String>();
+        int failures;
+
+        @Override
+        public void add(String address, String text, long date) {
+            pending.add(text);
+        }
+
+        @Override
+        public void flush() {
+            if (failures > 0) {
+                failures--;
+                pending.clear();
+                throw new RuntimeException("provider down");
+            }
+            delivered.addAll(pending);
+            pending.clear();
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file() {
+        return new File(folder.getRoot(), "fingerprints");
+    }
+
+    @Test
+    public void addsOnce() throws Exception {
+        FingerprintIndex index = new FingerprintIndex(file());
+        assertTrue(index.isNew());
+        assertTrue(index.add("+15551234567", 1000, "hi"));
+        assertFalse(index.add("+15551234567", 1000, "hi"));
+        assertTrue(index.add("+15551234567", 1000, "hello"));
+        assertTrue(index.add("+15551234567", 2000, "hi"));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void numbersAndDatesAreLoose() throws Exception {
+        FingerprintIndex index = new FingerprintIndex(file());
+        index.add("+1 (555) 123-4567", 1000, "hi");
+        // digits only, to the second
+        assertTrue(index.contains("15551234567", 1999, "hi"));
+        assertFalse(index.contains("15551234567", 2000, "hi"));
+    }
+
+    @Test
+    public void survivesAReopen() throws Exception {
+        FingerprintIndex index = new FingerprintIndex(file());
+        // enough to grow the table a couple of times
+        for (int i = 0; i < 10000; i++)
+            index.add("+15551234567", i * 1000L, "message " + i);
+        index.sync();
+
+        FingerprintIndex reopened = new FingerprintIndex(file());
+        assertFalse(reopened.isNew());
+        assertEquals(10000, reopened.size());
+        for (int i = 0; i < 10000; i++)
+            assertTrue(reopened.contains("+15551234567", i * 1000L, "message " + i));
+        assertFalse(reopened.contains("+15551234567", 10000 * 1000L, "message 10000"));
+    }
+
+    @Test
+    public void unreadableFileStartsOver() throws Exception {
+        FileOutputStream out = new FileOutputStream(file());
+        out.write("not an index".getBytes("UTF-8"));
+        out.close();
+
+        FingerprintIndex index = new FingerprintIndex(file());
+        assertTrue(index.isNew());
+        assertEquals(0, index.size());
+        assertTrue(index.add("+15551234567", 1000, "hi"));
+    }
+
+    @Test
+    public void filterRecordsOnlyAfterAFlush() throws Exception {
+        FingerprintIndex index = new FingerprintIndex(file());
+        RecordingSynthesizer synthesizer = new RecordingSynthesizer();
+        SmsSynthesizer filtered = index.filter(synthesizer);
+
+        filtered.add("+15551234567", "one", 1000);
+        // a duplicate within the same batch
+        filtered.add("+15551234567", "one", 1000);
+        filtered.add("+15551234567", "two", 2000);
+        assertFalse(index.contains("+15551234567", 1000, "one"));
+
+        filtered.flush();
+        assertEquals(2, synthesizer.delivered.size());
+        assertTrue(index.contains("+15551234567", 1000, "one"));
+        assertTrue(index.contains("+15551234567", 2000, "two"));
+
+        // already delivered
+        filtered.add("+15551234567", "one", 1000);
+        filtered.flush();
+        assertEquals(2, synthesizer.delivered.size());
+    }
+
+    @Test
+    public void failedFlushRecordsNothing() throws Exception {
+        FingerprintIndex index = new FingerprintIndex(file());
+        RecordingSynthesizer synthesizer = new RecordingSynthesizer();
+        synthesizer.failures = 1;
+        SmsSynthesizer filtered = index.filter(synthesizer);
+
+        filtered.add("+15551234567", "one", 1000);
+        filtered.add("+15551234567", "two", 2000);
+        try {
+            filtered.flush();
+        }
+        catch (RuntimeException e) {
+        }
+        assertEquals(0, index.size());
+
+        // the sync tries the same messages again, and this time they land
+        filtered.add("+15551234567", "one", 1000);
+        filtered.add("+15551234567", "two", 2000);
+        filtered.flush();
+        assertEquals(2, synthesizer.delivered.size());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void addWaitsForTheRebuild() throws Exception {
+        final FingerprintIndex index = new FingerprintIndex(file());
+        index.add("+15550000000", 1000, "stale");
+        index.startRebuild();
+        assertEquals(0, index.size());
+
+        final boolean[] added = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                added[0] = index.add("+15551234567", 1000, "hi");
+                done.countDown();
+            }
+        }.start();
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+
+        // the provider already has it
+        index.addExisting("+15551234567", 1000, "hi");
+        index.finishRebuild();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(added[0]);
+        assertFalse(index.isNew());
+        assertEquals(1, index.size());
+    }
+}
@@ -0,0 +1,130 @@
+package org.cyanogenmod.babel.engine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JournaledStateStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void put(StateStore state, String key, String value) {
+        state.put(Collections.singletonMap(key, value));
+    }
+
+    @Test
+    public void reloadsWhatWasFlushed() throws Exception {
+        File file = folder.newFile("state");
+        JournaledStateStore state = new JournaledStateStore(file, 1000);
+        put(state, "timestamp", "100");
+        put(state, "account", "a@example.com");
+        put(state, "account", null);
+        state.shutdown();
+
+        JournaledStateStore reloaded = new JournaledStateStore(file, 1000);
+        assertEquals("100", reloaded.get("timestamp"));
+        assertNull(reloaded.get("account"));
+        reloaded.shutdown();
+    }
+
+    @Test
+    public void commitsOnItsOwnAfterTheDelay() throws Exception {
+        File file = folder.newFile("state");
+        JournaledStateStore state = new JournaledStateStore(file, 20);
+        for (int i = 0; i < 100; i++)
+            put(state, "key" + i, "value" + i);
+        Thread.sleep(300);
+        // the puts share commits instead of one each
+        assertTrue("commits=" + state.commits, state.commits >= 1 && state.commits < 10);
+
+        JournaledStateStore reloaded = new JournaledStateStore(file, 1000);
+        for (int i = 0; i < 100; i++)
+            assertEquals("value" + i, reloaded.get("key" + i));
+        reloaded.shutdown();
+        state.shutdown();
+    }
+
+    @Test
+    public void tornBatchIsDroppedWhole() throws Exception {
+        File file = folder.newFile("state");
+        JournaledStateStore state = new JournaledStateStore(file, 1000);
+        put(state, "timestamp", "100");
+        state.shutdown();
+
+        // a crash partway through a two key batch
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        out.writeInt(2);
+        out.writeInt(9);
+        out.write("timestamp".getBytes("UTF-8"));
+        out.writeInt(3);
+        out.write("200".getBytes("UTF-8"));
+        out.writeInt(4);
+        out.write("con".getBytes("UTF-8"));
+        out.close();
+
+        JournaledStateStore reloaded = new JournaledStateStore(file, 1000);
+        assertEquals("100", reloaded.get("timestamp"));
+        // the log is trimmed back, so later batches aren't lost behind the torn one
+        HashMap<String, String> updates = new HashMap<String, String>();
+        updates.put("timestamp", "300");
+        updates.put("etag", "\"3\"");
+        reloaded.put(updates);
+        reloaded.shutdown();
+
+        JournaledStateStore again = new JournaledStateStore(file, 1000);
+        assertEquals("300", again.get("timestamp"));
+        assertEquals("\"3\"", again.get("etag"));
+        again.shutdown();
+    }
+
+    @Test
+    public void compactsALongLog() throws Exception {
+        File file = folder.newFile("state");
+        JournaledStateStore state = new JournaledStateStore(file, 1000);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            value.append('x');
+        for (int i = 0; i < 200; i++) {
+            put(state, "cursors", value.toString() + i);
+            state.flush();
+        }
+        assertTrue(state.compactions > 0);
+        assertTrue("log is " + file.length() + " bytes", file.length() < 64 * 1024);
+        state.shutdown();
+
+        JournaledStateStore reloaded = new JournaledStateStore(file, 1000);
+        assertEquals(value.toString() + 199, reloaded.get("cursors"));
+        reloaded.shutdown();
+    }
+
+    @Test
+    public void reloadedLogIsntRewrittenRightAway() throws Exception {
+        File file = folder.newFile("state");
+        JournaledStateStore state = new JournaledStateStore(file, 1000);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            value.append('x');
+        // a log past the compaction size, but mostly live state
+        for (int i = 0; i < 100; i++)
+            put(state, "key" + i, value.toString());
+        state.flush();
+        assertTrue(file.length() > 64 * 1024);
+        state.shutdown();
+
+        JournaledStateStore reloaded = new JournaledStateStore(file, 1000);
+        put(reloaded, "timestamp", "100");
+        reloaded.flush();
+        assertEquals(0, reloaded.compactions);
+        reloaded.shutdown();
+    }
+}
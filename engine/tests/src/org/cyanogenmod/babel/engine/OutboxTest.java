@@ -0,0 +1,253 @@
+package org.cyanogenmod.babel.engine;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+    private static class Outcome implements Outbox.Callback {
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch done;
+
+        Outcome(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onSent() {
+            sent.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed() {
+            failed.incrementAndGet();
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("no outcome", done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    // fails the first failures attempts, then sends
+    private static class FlakySender implements Outbox.Sender {
+        final AtomicInteger attempts = new AtomicInteger();
+        final int failures;
+
+        FlakySender(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public void send(Outbox.Entry entry) throws Exception {
+            if (attempts.incrementAndGet() <= failures)
+                throw new Exception("down");
+        }
+    }
+
+    // blocks every attempt until released, then fails it
+    private static class StuckSender implements Outbox.Sender {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void send(Outbox.Entry entry) throws Exception {
+            started.countDown();
+            release.await();
+            throw new Exception("down");
+        }
+    }
+
+    private final MemoryOutboxStore store = new MemoryOutboxStore();
+    private SendExecutor executor;
+    private Outbox outbox;
+
+    private Outbox open(Outbox.Sender sender, int workers, int capacity, int attempts, long delay) {
+        executor = new SendExecutor(workers, capacity);
+        outbox = new Outbox(store, executor, sender, attempts, delay, delay);
+        return outbox;
+    }
+
+    private void shutdown() {
+        outbox.shutdown();
+        executor.shutdown();
+    }
+
+    @After
+    public void tearDown() {
+        if (outbox != null)
+            shutdown();
+    }
+
+    @Test
+    public void sentMessageLeavesTheJournal() throws Exception {
+        open(new FlakySender(0), 2, 8, 3, 1);
+        Outcome outcome = new Outcome(1);
+        outbox.enqueue("+15551234567", "hi", outcome);
+        outcome.await();
+        assertEquals(1, outcome.sent.get());
+        assertEquals(0, store.getAll().size());
+    }
+
+    @Test
+    public void failedAttemptsAreRetried() throws Exception {
+        FlakySender sender = new FlakySender(2);
+        open(sender, 1, 8, 5, 1);
+        Outcome outcome = new Outcome(1);
+        outbox.enqueue("+15551234567", "hi", outcome);
+        outcome.await();
+        assertEquals(1, outcome.sent.get());
+        assertEquals(3, sender.attempts.get());
+        assertEquals(0, store.getAll().size());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        FlakySender sender = new FlakySender(Integer.MAX_VALUE);
+        open(sender, 1, 8, 3, 1);
+        Outcome outcome = new Outcome(1);
+        outbox.enqueue("+15551234567", "hi", outcome);
+        outcome.await();
+        assertEquals(1, outcome.failed.get());
+        assertEquals(3, sender.attempts.get());
+        assertEquals(0, store.getAll().size());
+    }
+
+    @Test
+    public void fullQueueFailsANewMessage() throws Exception {
+        StuckSender sender = new StuckSender();
+        open(sender, 1, 1, 3, 1);
+        Outcome first = new Outcome(1);
+        outbox.enqueue("+15550000001", "first", first);
+        assertTrue(sender.started.await(5, TimeUnit.SECONDS));
+
+        Outcome second = new Outcome(1);
+        outbox.enqueue("+15550000002", "second", second);
+        second.await();
+        assertEquals(1, second.failed.get());
+        // only the one that got in is still journaled
+        assertEquals(1, store.getAll().size());
+        sender.release.countDown();
+    }
+
+    @Test
+    public void shutdownKeepsQueuedMessagesJournaled() throws Exception {
+        StuckSender sender = new StuckSender();
+        open(sender, 1, 8, 3, 1);
+        Outcome outcome = new Outcome(3);
+        for (int i = 0; i < 3; i++)
+            outbox.enqueue("+1555000000" + i % 2, "message " + i, outcome);
+        // one attempt in flight, one queued behind it, one held for the same number
+        assertTrue(sender.started.await(5, TimeUnit.SECONDS));
+
+        shutdown();
+        sender.release.countDown();
+        Thread.sleep(100);
+        assertEquals(3, store.getAll().size());
+        assertEquals(0, outcome.sent.get() + outcome.failed.get());
+        for (Outbox.Entry entry: store.getAll())
+            assertEquals(0, entry.attempts);
+
+        // the next run sends them all
+        FlakySender healthy = new FlakySender(0);
+        open(healthy, 1, 8, 3, 1);
+        outbox.resume();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!store.getAll().isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, store.getAll().size());
+        assertEquals(3, healthy.attempts.get());
+    }
+
+    @Test
+    public void shutdownKeepsScheduledRetriesJournaled() throws Exception {
+        final CountDownLatch failed = new CountDownLatch(1);
+        open(new Outbox.Sender() {
+            @Override
+            public void send(Outbox.Entry entry) throws Exception {
+                failed.countDown();
+                throw new Exception("down");
+            }
+        }, 1, 8, 5, 60 * 1000);
+        Outcome outcome = new Outcome(1);
+        outbox.enqueue("+15551234567", "hi", outcome);
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        // the retry is a minute out; give the first attempt time to be recorded
+        Thread.sleep(100);
+
+        shutdown();
+        assertEquals(1, store.getAll().size());
+        assertEquals(1, store.getAll().get(0).attempts);
+        assertEquals(0, outcome.sent.get() + outcome.failed.get());
+    }
+
+    @Test
+    public void fullQueueDoesntUseUpAttempts() throws Exception {
+        final CountDownLatch failed = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger attempts = new AtomicInteger();
+        open(new Outbox.Sender() {
+            @Override
+            public void send(Outbox.Entry entry) throws Exception {
+                if (entry.address.equals("+15550000001")) {
+                    release.await();
+                    return;
+                }
+                if (attempts.incrementAndGet() == 1) {
+                    failed.countDown();
+                    throw new Exception("down");
+                }
+            }
+        }, 1, 1, 2, 50);
+        Outcome retried = new Outcome(1);
+        outbox.enqueue("+15550000002", "retried", retried);
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        while (executor.getQueueDepth() > 0)
+            Thread.sleep(1);
+        // fill the send queue while the retry waits for its turn
+        outbox.enqueue("+15550000001", "stuck", new Outcome(1));
+
+        Thread.sleep(500);
+        assertTrue(outbox.requeued.get() > 0);
+        assertEquals(0, retried.sent.get() + retried.failed.get());
+        assertEquals(1, attempts.get());
+
+        // one attempt left, and it goes through once there's room
+        release.countDown();
+        retried.await();
+        assertEquals(1, retried.sent.get());
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void laterMessageWaitsBehindARetry() throws Exception {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger attempts = new AtomicInteger();
+        open(new Outbox.Sender() {
+            @Override
+            public void send(Outbox.Entry entry) throws Exception {
+                if (attempts.incrementAndGet() == 1)
+                    throw new Exception("down");
+                sent.add(entry.body);
+            }
+        }, 2, 8, 3, 100);
+        Outcome outcome = new Outcome(2);
+        outbox.enqueue("+15551234567", "first", outcome);
+        outbox.enqueue("+15551234567", "second", outcome);
+        outcome.await();
+        assertEquals(2, outcome.sent.get());
+        assertEquals(Arrays.asList("first", "second"), sent);
+    }
+}
@@ -0,0 +1,77 @@
+package org.cyanogenmod.babel.engine;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecentSentIndexTest {
+    @Test
+    public void matchesEachSendOnce() {
+        RecentSentIndex index = new RecentSentIndex(100, 60 * 1000);
+        index.add("+15551234567", "on my way");
+        index.add("+15551234567", "on my way");
+        assertTrue(index.remove("+15551234567", "on my way"));
+        assertTrue(index.remove("+15551234567", "on my way"));
+        assertFalse(index.remove("+15551234567", "on my way"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void matchesAcrossNumberFormats() {
+        RecentSentIndex index = new RecentSentIndex(100, 60 * 1000);
+        index.add("(555) 123-4567", "hi");
+        assertFalse(index.remove("+15551234567", "hi there"));
+        assertFalse(index.remove("+15557654321", "hi"));
+        assertTrue(index.remove("+15551234567", "hi"));
+    }
+
+    @Test
+    public void forgetsAfterTheTtl() throws Exception {
+        RecentSentIndex index = new RecentSentIndex(100, 50);
+        index.add("+15551234567", "hi");
+        Thread.sleep(100);
+        assertFalse(index.remove("+15551234567", "hi"));
+        // and the expired entry gets replaced by a new send
+        index.add("+15551234567", "hi");
+        assertTrue(index.remove("+15551234567", "hi"));
+    }
+
+    @Test
+    public void holdsAtMostCapacity() {
+        RecentSentIndex index = new RecentSentIndex(4, 60 * 1000);
+        for (int i = 0; i < 10; i++)
+            index.add("+1555000000" + i, "message");
+        assertEquals(4, index.size());
+        assertFalse(index.remove("+15550000000", "message"));
+        assertTrue(index.remove("+15550000009", "message"));
+    }
+
+    @Test
+    public void sendersAndRefreshDontLoseEntries() throws Exception {
+        final RecentSentIndex index = new RecentSentIndex(1000, 60 * 1000);
+        final AtomicInteger misses = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final String number = "+1555000000" + t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        index.add(number, "message " + i);
+                        if (!index.remove(number, "message " + i))
+                            misses.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread: threads)
+            thread.join();
+        assertEquals(0, misses.get());
+        assertEquals(0, index.size());
+    }
+}
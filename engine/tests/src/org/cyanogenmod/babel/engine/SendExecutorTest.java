@@ -0,0 +1,192 @@
+package org.cyanogenmod.babel.engine;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SendExecutorTest {
+    private static class Recorder extends SendExecutor.Task {
+        final String name;
+        final List<String> ran;
+        final CountDownLatch release;
+        boolean rejected;
+        boolean abandoned;
+
+        Recorder(String name, List<String> ran, CountDownLatch release) {
+            this.name = name;
+            this.ran = ran;
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            ran.add(name);
+            if (release != null) {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                }
+            }
+        }
+
+        @Override
+        public void reject() {
+            rejected = true;
+        }
+
+        @Override
+        public void abandon() {
+            abandoned = true;
+        }
+    }
+
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    private SendExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    private void awaitRuns(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ran.size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(count, ran.size());
+    }
+
+    @Test
+    public void sameKeyRunsOneAtATimeInOrder() throws Exception {
+        executor = new SendExecutor(4, 100);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        for (int i = 0; i < 50; i++) {
+            final int index = i;
+            executor.submit("+15551234567", new SendExecutor.Task() {
+                @Override
+                public void run() {
+                    if (running.incrementAndGet() > 1)
+                        overlaps.incrementAndGet();
+                    order.add(index);
+                    Thread.yield();
+                    running.decrementAndGet();
+                    ran.add("done");
+                }
+
+                @Override
+                public void reject() {
+                }
+            });
+        }
+        awaitRuns(50);
+        assertEquals(0, overlaps.get());
+        for (int i = 0; i < 50; i++)
+            assertEquals(i, (int)order.get(i));
+    }
+
+    @Test
+    public void slowDestinationDoesntHoldUpOthers() throws Exception {
+        executor = new SendExecutor(2, 100);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit("slow", new Recorder("slow 1", ran, release));
+        executor.submit("slow", new Recorder("slow 2", ran, null));
+        executor.submit("fast", new Recorder("fast", ran, null));
+        awaitRuns(2);
+        assertTrue(ran.contains("fast"));
+        assertFalse(ran.contains("slow 2"));
+        release.countDown();
+        awaitRuns(3);
+    }
+
+    @Test
+    public void mostUrgentPriorityGoesFirst() throws Exception {
+        executor = new SendExecutor(1, 100);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit("block", new Recorder("block", ran, release));
+        awaitRuns(1);
+
+        // queued while the only worker is busy, least urgent first
+        executor.submit("b", SendExecutor.PRIORITY_BULK, new Recorder("bulk", ran, null));
+        executor.submit("r", SendExecutor.PRIORITY_RETRY, new Recorder("retry", ran, null));
+        executor.submit("i", SendExecutor.PRIORITY_INTERACTIVE, new Recorder("interactive", ran, null));
+        release.countDown();
+        awaitRuns(4);
+        assertEquals(Arrays.asList("block", "interactive", "retry", "bulk"), ran);
+    }
+
+    @Test
+    public void destinationWaitsBehindItsOwnQueue() throws Exception {
+        executor = new SendExecutor(1, 100);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit("block", new Recorder("block", ran, release));
+        awaitRuns(1);
+
+        // an interactive send to a number with bulk sends queued still goes after them
+        executor.submit("a", SendExecutor.PRIORITY_BULK, new Recorder("a bulk", ran, null));
+        executor.submit("a", SendExecutor.PRIORITY_INTERACTIVE, new Recorder("a interactive", ran, null));
+        executor.submit("b", SendExecutor.PRIORITY_RETRY, new Recorder("b retry", ran, null));
+        release.countDown();
+        awaitRuns(4);
+        assertEquals(Arrays.asList("block", "b retry", "a bulk", "a interactive"), ran);
+    }
+
+    @Test
+    public void fullQueueRejects() throws Exception {
+        executor = new SendExecutor(1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(executor.submit("a", new Recorder("a", ran, release)));
+        assertTrue(executor.submit("b", new Recorder("b", ran, null)));
+        Recorder overflow = new Recorder("c", ran, null);
+        assertFalse(executor.submit("c", overflow));
+        assertTrue(overflow.rejected);
+        assertFalse(overflow.abandoned);
+        release.countDown();
+        awaitRuns(2);
+    }
+
+    @Test
+    public void shutdownAbandonsInsteadOfRejecting() throws Exception {
+        executor = new SendExecutor(1, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit("a", new Recorder("a", ran, release));
+        awaitRuns(1);
+        Recorder queued = new Recorder("b", ran, null);
+        executor.submit("b", queued);
+
+        executor.shutdown();
+        assertTrue(queued.abandoned);
+        assertFalse(queued.rejected);
+
+        Recorder late = new Recorder("c", ran, null);
+        assertFalse(executor.submit("c", late));
+        assertTrue(late.abandoned);
+        assertFalse(late.rejected);
+        release.countDown();
+    }
+
+    @Test
+    public void rateLimiterSpacesTasksOut() throws Exception {
+        executor = new SendExecutor(2, 100, new TokenBucket(20, 1));
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++)
+            executor.submit("+1555000000" + i, new Recorder("task " + i, ran, null));
+        awaitRuns(5);
+        // one from the burst, then four at 20 a second
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsed + "ms", elapsed >= 150);
+    }
+}
@@ -0,0 +1,380 @@
+package org.cyanogenmod.babel.engine;
+
+import org.cyanogenmod.babel.engine.testing.FakeVoiceServer;
+import org.cyanogenmod.babel.engine.testing.StaticCredentials;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncEngineTest {
+    private static final String TOKEN = "token";
+
+    private static class Row {
+        final String number;
+        final String text;
+        final int type;
+
+        Row(String number, String text, int type) {
+            this.number = number;
+            this.text = text;
+            this.type = type;
+        }
+    }
+
+    private static class RecordingStore implements MessageStore {
+        final List<Row> rows = new ArrayList<Row>();
+
+        @Override
+        public synchronized void add(String number, String text, int type, long date) {
+            rows.add(new Row(number, text, type));
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        synchronized List<String> texts(int type) {
+            ArrayList<String> texts = new ArrayList<String>();
+            for (Row row: rows) {
+                if (row.type == type)
+                    texts.add(row.text);
+            }
+            return texts;
+        }
+    }
+
+    // delivers on flush, unless told to fail
+    private static class RecordingSynthesizer implements SmsSynthesizer {
+        final List<String> pending = new ArrayList<String>();
+        final List<String> delivered = new ArrayList<String>();
+        int failures;
+
+        @Override
+        public synchronized void add(String address, String text, long date) {
+            pending.add(text);
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (failures > 0) {
+                failures--;
+                pending.clear();
+                throw new RuntimeException("provider down");
+            }
+            delivered.addAll(pending);
+            pending.clear();
+        }
+
+        synchronized List<String> delivered() {
+            return new ArrayList<String>(delivered);
+        }
+    }
+
+    private static class StageCounter implements StageListener {
+        final ConcurrentHashMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+
+        @Override
+        public void onStage(String stage, long nanos) {
+            counts.putIfAbsent(stage, new AtomicInteger());
+            counts.get(stage).incrementAndGet();
+        }
+
+        int get(String stage) {
+            AtomicInteger count = counts.get(stage);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    private static class Outcome implements Outbox.Callback {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void onSent() {
+            calls.incrementAndGet();
+            sent.countDown();
+        }
+
+        @Override
+        public void onFailed() {
+            calls.incrementAndGet();
+        }
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static void await(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.met()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeVoiceServer server;
+    private HttpVoiceTransport transport;
+    private final MemoryStateStore state = new MemoryStateStore();
+    private final RecordingStore store = new RecordingStore();
+    private final RecordingSynthesizer synthesizer = new RecordingSynthesizer();
+    private final MemoryOutboxStore outboxStore = new MemoryOutboxStore();
+    private final ArrayList<SyncEngine> engines = new ArrayList<SyncEngine>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeVoiceServer(TOKEN);
+        server.start();
+        transport = new HttpVoiceTransport(server.getBaseUrl());
+    }
+
+    @After
+    public void tearDown() {
+        for (SyncEngine engine: engines)
+            engine.shutdown();
+        server.stop();
+    }
+
+    private SyncEngine.Config config() {
+        SyncEngine.Config config = new SyncEngine.Config();
+        // tests refresh by hand
+        config.pollMinInterval = 60 * 60 * 1000;
+        config.pollMaxInterval = 60 * 60 * 1000;
+        config.sendRate = 0;
+        config.sendRetryDelay = 100;
+        config.sendRetryMaxDelay = 100;
+        config.backfillRate = 1000;
+        return config;
+    }
+
+    private SyncEngine engine(SyncEngine.Config config, SmsSynthesizer synthesizer) {
+        SyncEngine engine = new SyncEngine(config, transport, new StaticCredentials("user@example.com", TOKEN),
+        state, store, synthesizer, outboxStore);
+        engines.add(engine);
+        return engine;
+    }
+
+    private SyncEngine engine() {
+        return engine(config(), synthesizer);
+    }
+
+    // the first sync, over whatever history the server has
+    private SyncEngine synced() throws Exception {
+        server.deliver("+15550000001", "history");
+        SyncEngine engine = engine();
+        assertFalse(engine.refresh());
+        engine.awaitWrites();
+        return engine;
+    }
+
+    @Test
+    public void firstSyncLeavesHistoryToTheBackfill() throws Exception {
+        server.deliver("+15550000001", "old one");
+        server.deliver("+15550000002", "old two");
+        SyncEngine engine = engine();
+        assertFalse(engine.refresh());
+        engine.awaitWrites();
+        // nothing from before the first sync pops up as a new sms
+        assertEquals(0, synthesizer.delivered().size());
+
+        await(new Condition() {
+            @Override
+            public boolean met() {
+                return store.texts(SyncProcessor.PROVIDER_INCOMING_SMS).size() == 2;
+            }
+        });
+        assertTrue(store.texts(SyncProcessor.PROVIDER_INCOMING_SMS).containsAll(Arrays.asList("old one", "old two")));
+    }
+
+    @Test
+    public void accountWithNoHistorySyncsFirstOnlyOnce() throws Exception {
+        SyncEngine engine = engine();
+        assertFalse(engine.refresh());
+        engine.awaitWrites();
+        assertEquals("true", state.get(SyncEngine.SYNCED));
+
+        // conditional from now on
+        StageCounter stages = new StageCounter();
+        engine.setStageListener(stages);
+        assertFalse(engine.refresh());
+        assertEquals(0, stages.get(StageListener.PARSE));
+
+        // and the first message is live, not history
+        server.deliver("+15550000001", "hello");
+        assertTrue(engine.refresh());
+        engine.awaitWrites();
+        assertEquals(Arrays.asList("hello"), synthesizer.delivered());
+
+        // a restarted engine knows too
+        SyncEngine restarted = engine();
+        server.deliver("+15550000001", "again");
+        assertTrue(restarted.refresh());
+        restarted.awaitWrites();
+        assertEquals(Arrays.asList("hello", "again"), synthesizer.delivered());
+    }
+
+    @Test
+    public void newMessagesAreSynthesized() throws Exception {
+        SyncEngine engine = synced();
+        server.deliver("+15550000002", "new");
+        assertTrue(engine.refresh());
+        engine.awaitWrites();
+        assertEquals(Arrays.asList("new"), synthesizer.delivered());
+
+        // and only once
+        server.deliver("+15550000003", "newer");
+        assertTrue(engine.refresh());
+        engine.awaitWrites();
+        assertEquals(Arrays.asList("new", "newer"), synthesizer.delivered());
+    }
+
+    @Test
+    public void unchangedListIsNotParsedAgain() throws Exception {
+        SyncEngine engine = synced();
+        StageCounter stages = new StageCounter();
+        engine.setStageListener(stages);
+
+        // the server answers the conditional fetch with a 304
+        assertFalse(engine.refresh());
+        assertEquals(1, stages.get(StageListener.FETCH));
+        assertEquals(0, stages.get(StageListener.PARSE));
+
+        server.deliver("+15550000002", "new");
+        assertTrue(engine.refresh());
+        assertEquals(2, stages.get(StageListener.FETCH));
+        assertEquals(1, stages.get(StageListener.PARSE));
+    }
+
+    @Test
+    public void unchangedConversationsAreSkipped() throws Exception {
+        for (int i = 0; i < 5; i++)
+            server.deliver("+1555000000" + i, "hi " + i);
+        MemoryStateStore saved = new MemoryStateStore();
+        ConversationCursors cursors = new ConversationCursors(saved);
+        VoiceTransport.MessagesResponse response = transport.fetchMessages(TOKEN, null, null);
+        MessageParser.Result result = MessageParser.parse(new InputStreamReader(response.body, "UTF-8"), 0, cursors);
+        response.body.close();
+        assertEquals(5, result.conversations.size());
+        assertEquals(0, result.skipped);
+        HashMap<String, String> updates = new HashMap<String, String>();
+        cursors.update(result.seen, updates);
+        saved.put(updates);
+        cursors = new ConversationCursors(saved);
+
+        server.deliver("+15550000003", "again");
+        response = transport.fetchMessages(TOKEN, null, null);
+        result = MessageParser.parse(new InputStreamReader(response.body, "UTF-8"), result.max, cursors);
+        response.body.close();
+        assertEquals(4, result.skipped);
+        assertEquals(1, result.conversations.size());
+        assertEquals("again", result.conversations.get(0).get(0).message);
+    }
+
+    @Test
+    public void failedWriteIsRetried() throws Exception {
+        // the way the app wires it: synthesis through the fingerprint index
+        FingerprintIndex index = new FingerprintIndex(folder.newFile("fingerprints"));
+        SyncEngine engine = engine(config(), index.filter(synthesizer));
+        server.deliver("+15550000001", "history");
+        engine.refresh();
+        engine.awaitWrites();
+
+        synchronized (synthesizer) {
+            synthesizer.failures = 1;
+        }
+        server.deliver("+15550000002", "one");
+        server.deliver("+15550000003", "two");
+        engine.refresh();
+        engine.awaitWrites();
+        assertEquals(0, synthesizer.delivered().size());
+
+        // the watermark didn't move, and the index didn't record them,
+        // so the next refresh delivers them after all
+        assertTrue(engine.refresh());
+        engine.awaitWrites();
+        List<String> delivered = synthesizer.delivered();
+        assertEquals(2, delivered.size());
+        assertTrue(delivered.containsAll(Arrays.asList("one", "two")));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void sendGoesOutToTheServer() throws Exception {
+        SyncEngine engine = engine();
+        engine.start();
+        Outcome outcome = new Outcome();
+        engine.send("+15551234567", "hello", outcome);
+        assertTrue(outcome.sent.await(10, TimeUnit.SECONDS));
+        assertEquals(1, outcome.calls.get());
+        assertEquals(1, server.getSent().size());
+        assertEquals("+15551234567", server.getSent().get(0).number);
+        assertEquals("hello", server.getSent().get(0).text);
+        assertEquals(0, outboxStore.getAll().size());
+    }
+
+    @Test
+    public void sentTextIsNotInsertedTwice() throws Exception {
+        SyncEngine engine = synced();
+        Outcome outcome = new Outcome();
+        engine.send("(555) 123-4567", "on my way", outcome);
+        assertTrue(outcome.sent.await(10, TimeUnit.SECONDS));
+        assertEquals("+15551234567", server.getSent().get(0).number);
+
+        // one sent from somewhere else does get inserted
+        transport.send(TOKEN, FakeVoiceServer.RNR_SE, "+15557654321", "from the web");
+        assertTrue(engine.refresh());
+        engine.awaitWrites();
+        assertEquals(Arrays.asList("from the web"), store.texts(SyncProcessor.PROVIDER_OUTGOING_SMS));
+    }
+
+    @Test
+    public void outboxSurvivesAnEngineShutdown() throws Exception {
+        server.setErrorRate(1);
+        SyncEngine engine = engine();
+        engine.start();
+        Outcome outcome = new Outcome();
+        engine.send("+15551234567", "hello", outcome);
+        await(new Condition() {
+            @Override
+            public boolean met() {
+                List<Outbox.Entry> entries = outboxStore.getAll();
+                return !entries.isEmpty() && entries.get(0).attempts > 0;
+            }
+        });
+        engine.shutdown();
+        assertEquals(1, outboxStore.getAll().size());
+        assertEquals(0, outcome.calls.get());
+
+        // the next engine sends it
+        server.setErrorRate(0);
+        engine().start();
+        await(new Condition() {
+            @Override
+            public boolean met() {
+                return outboxStore.getAll().isEmpty();
+            }
+        });
+        assertEquals(1, server.getSent().size());
+        assertEquals("hello", server.getSent().get(0).text);
+        assertEquals(0, outcome.calls.get());
+    }
+}
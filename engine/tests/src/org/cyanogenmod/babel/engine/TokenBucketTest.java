@@ -0,0 +1,68 @@
+package org.cyanogenmod.babel.engine;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+    private static long millisSince(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    public void burstGoesStraightThrough() throws Exception {
+        TokenBucket bucket = new TokenBucket(1, 5);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++)
+            bucket.acquire();
+        assertTrue(millisSince(start) < 500);
+    }
+
+    @Test
+    public void holdsToTheSteadyRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(50, 1);
+        bucket.acquire();
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++)
+            bucket.acquire();
+        // 10 tokens at 50 a second
+        long elapsed = millisSince(start);
+        assertTrue("took " + elapsed + "ms", elapsed >= 180);
+    }
+
+    @Test
+    public void refundWakesAWaiter() throws Exception {
+        final TokenBucket bucket = new TokenBucket(0.1, 1);
+        bucket.acquire();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    bucket.acquire();
+                    acquired.countDown();
+                }
+                catch (InterruptedException e) {
+                }
+            }
+        };
+        waiter.start();
+        // the next token is 10s out
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        bucket.refund();
+        assertTrue(acquired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void zeroRateDoesntLimit() throws Exception {
+        TokenBucket bucket = new TokenBucket(0, 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10000; i++)
+            bucket.acquire();
+        assertTrue(millisSince(start) < 1000);
+    }
+}
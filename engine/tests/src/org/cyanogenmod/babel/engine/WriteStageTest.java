@@ -0,0 +1,135 @@
+package org.cyanogenmod.babel.engine;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class WriteStageTest {
+    private final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+    private WriteStage stage;
+
+    @After
+    public void tearDown() {
+        if (stage != null)
+            stage.shutdown();
+    }
+
+    private WriteStage.Batch record(final int value) {
+        return new WriteStage.Batch() {
+            @Override
+            public void write() {
+                written.add(value);
+            }
+        };
+    }
+
+    @Test
+    public void writesInSubmitOrder() throws Exception {
+        stage = new WriteStage(2);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 50; i++) {
+            stage.submit(stage.getGeneration(), record(i));
+            expected.add(i);
+        }
+        stage.awaitAll();
+        assertEquals(expected, written);
+    }
+
+    @Test
+    public void failureDropsWhatWasQueuedBehindIt() throws Exception {
+        stage = new WriteStage(4);
+        final CountDownLatch release = new CountDownLatch(1);
+        int generation = stage.getGeneration();
+        stage.submit(generation, new WriteStage.Batch() {
+            @Override
+            public void write() throws Exception {
+                release.await();
+                written.add(0);
+            }
+        });
+        stage.submit(generation, new WriteStage.Batch() {
+            @Override
+            public void write() throws Exception {
+                throw new Exception("provider down");
+            }
+        });
+        // parsed against state that the failed batch never saved
+        stage.submit(generation, record(2));
+        release.countDown();
+        stage.awaitAll();
+
+        assertEquals(Arrays.asList(0), written);
+        assertEquals(generation + 1, stage.getGeneration());
+        assertEquals(1, stage.failed.get());
+        assertEquals(1, stage.dropped.get());
+
+        // batches parsed after reloading go through
+        stage.submit(stage.getGeneration(), record(3));
+        stage.awaitAll();
+        assertEquals(Arrays.asList(0, 3), written);
+    }
+
+    @Test
+    public void depthZeroWritesInline() throws Exception {
+        stage = new WriteStage(0);
+        final Thread[] writer = new Thread[1];
+        stage.submit(stage.getGeneration(), new WriteStage.Batch() {
+            @Override
+            public void write() {
+                writer[0] = Thread.currentThread();
+            }
+        });
+        assertSame(Thread.currentThread(), writer[0]);
+
+        stage.submit(stage.getGeneration(), new WriteStage.Batch() {
+            @Override
+            public void write() throws Exception {
+                throw new Exception("provider down");
+            }
+        });
+        assertEquals(1, stage.getGeneration());
+        stage.awaitAll();
+    }
+
+    @Test
+    public void shutdownDropsWhatsQueued() throws Exception {
+        stage = new WriteStage(4);
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        int generation = stage.getGeneration();
+        stage.submit(generation, new WriteStage.Batch() {
+            @Override
+            public void write() throws Exception {
+                writing.countDown();
+                release.await();
+                written.add(0);
+            }
+        });
+        writing.await();
+        stage.submit(generation, record(1));
+        stage.submit(generation, record(2));
+        stage.shutdown();
+        release.countDown();
+
+        // the one being written is interrupted, and the rest don't
+        // keep awaitAll() waiting
+        stage.awaitAll();
+        assertEquals(2, stage.dropped.get());
+        assertFalse(written.contains(1));
+        assertFalse(written.contains(2));
+
+        // and neither does anything submitted after
+        stage.submit(generation, record(3));
+        stage.awaitAll();
+        assertEquals(3, stage.dropped.get());
+    }
+}
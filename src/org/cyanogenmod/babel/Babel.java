@@ -7,7 +7,6 @@ import android.accounts.AccountManagerCallback;
 import android.accounts.AccountManagerFuture;
 import android.app.Activity;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
@@ -20,10 +19,15 @@ import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import org.cyanogenmod.babel.engine.StateStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
 public class Babel extends Activity {
     class AccountAdapter extends ArrayAdapter<Account> {
         AccountAdapter() {
-            super(Babel.this, android.R.layout.simple_list_item_single_choice);
+            super(Babel.this, android.R.layout.simple_list_item_multiple_choice);
         }
 
         @Override
@@ -42,7 +46,7 @@ public class Babel extends Activity {
 
     ListView lv;
     AccountAdapter accountAdapter;
-    SharedPreferences settings;
+    StateStore state;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -50,7 +54,7 @@ public class Babel extends Activity {
         setContentView(R.layout.main);
 
         accountAdapter = new AccountAdapter();
-        settings = getSharedPreferences("settings", MODE_PRIVATE);
+        state = Helper.getState(this);
 
         LinearLayout statusContainer = (LinearLayout)findViewById(R.id.status_container);
         TextView status = (TextView)findViewById(R.id.status);
@@ -78,28 +82,42 @@ public class Babel extends Activity {
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 Account account = accountAdapter.getItem(position);
                 if (account == NULL) {
-                    settings.edit().remove("account").remove("rnrse").commit();
+                    Helper.setAccounts(state, new ArrayList<String>());
+                    lv.clearChoices();
+                    lv.setItemChecked(0, true);
+                    lv.requestLayout();
+                    startService(new Intent(Babel.this, BabelService.class));
                     return;
                 }
 
-                lv.clearChoices();
+                // the list already toggled the check
+                if (!lv.isItemChecked(position)) {
+                    List<String> accounts = Helper.getAccounts(state);
+                    accounts.remove(account.name);
+                    Helper.setAccounts(state, accounts);
+                    lv.setItemChecked(0, accounts.isEmpty());
+                    lv.requestLayout();
+                    startService(new Intent(Babel.this, BabelService.class));
+                    return;
+                }
+
+                // only check it once there's a token
+                lv.setItemChecked(position, false);
                 lv.requestLayout();
                 getToken(account, position);
             }
         });
 
-        String selectedAccount = settings.getString("account", null);
+        List<String> selectedAccounts = Helper.getAccounts(state);
 
         NULL = new Account(getString(R.string.disable), "com.google");
         accountAdapter.add(NULL);
-        int selected = 0;
+        lv.setItemChecked(0, selectedAccounts.isEmpty());
         for (Account account : AccountManager.get(this).getAccountsByType("com.google")) {
-            if (account.name.equals(selectedAccount))
-                selected = accountAdapter.getCount();
+            if (selectedAccounts.contains(account.name))
+                lv.setItemChecked(accountAdapter.getCount(), true);
             accountAdapter.add(account);
         }
-
-        lv.setItemChecked(selected, true);
         lv.requestLayout();
 
         startService(new Intent(this, BabelService.class));
@@ -115,12 +133,17 @@ public class Babel extends Activity {
                 try {
                     Bundle bundle = future.getResult();
                     final String authToken = bundle.getString(AccountManager.KEY_AUTHTOKEN);
-                    settings.edit()
-                    .putString("account", account.name)
-                    .commit();
+                    List<String> accounts = Helper.getAccounts(state);
+                    if (!accounts.contains(account.name))
+                        accounts.add(account.name);
+                    Helper.setAccounts(state, accounts);
 
+                    lv.setItemChecked(0, false);
                     lv.setItemChecked(position, true);
                     lv.requestLayout();
+
+                    // let the service start syncing it
+                    startService(new Intent(Babel.this, BabelService.class));
                 }
                 catch (Exception ex) {
                     ex.printStackTrace();
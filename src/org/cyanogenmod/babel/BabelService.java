@@ -2,17 +2,15 @@ package org.cyanogenmod.babel;
 
 import android.accessibilityservice.AccessibilityService;
 import android.accessibilityservice.AccessibilityServiceInfo;
-import android.accounts.Account;
-import android.accounts.AccountManager;
 import android.app.Activity;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.ContentValues;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.net.Uri;
-import android.os.Bundle;
 import android.os.IBinder;
 import android.os.UserHandle;
 import android.provider.Settings;
@@ -21,22 +19,35 @@ import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
 
 import com.android.internal.telephony.ISms;
-import com.google.gson.JsonObject;
-import com.google.gson.annotations.SerializedName;
-import com.koushikdutta.async.http.Multimap;
-import com.koushikdutta.ion.Ion;
-import com.koushikdutta.ion.Response;
 
+import org.cyanogenmod.babel.engine.FingerprintIndex;
+import org.cyanogenmod.babel.engine.JournaledStateStore;
+import org.cyanogenmod.babel.engine.MessageStore;
+import org.cyanogenmod.babel.engine.Metrics;
+import org.cyanogenmod.babel.engine.NumberNormalizer;
+import org.cyanogenmod.babel.engine.Outbox;
+import org.cyanogenmod.babel.engine.SmsSynthesizer;
+import org.cyanogenmod.babel.engine.StageListener;
+import org.cyanogenmod.babel.engine.StateStore;
+import org.cyanogenmod.babel.engine.SyncEngine;
+import org.cyanogenmod.babel.engine.SyncProcessor;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by koush on 7/5/13.
@@ -45,8 +56,109 @@ public class BabelService extends AccessibilityService {
     private static final String LOGTAG = "Babel";
     private static final char ENABLED_ACCESSIBILITY_SERVICES_SEPARATOR = ':';
 
+    private static final int DEFAULT_INSERT_BATCH = 100;
+    private static final int DEFAULT_NUMBER_CACHE = 512;
+
+    // the running service, so OutgoingSmsReceiver can skip startService
+    private static volatile BabelService instance;
+    static BabelService getInstance() {
+        return instance;
+    }
+    // how many addresses to remember the last account for
+    private static final int MAX_ROUTES = 256;
+    // the handoff histograms for each way a send reaches the service
+    private static final String HANDOFF_FAST = StageListener.HANDOFF + " fast";
+    private static final String HANDOFF_SERVICE = StageListener.HANDOFF + " service";
+
+    // everything one account needs to sync and send on its own:
+    // credentials, watermark, outbox, send workers and round trip tracking.
+    // nothing here waits on another account.
+    private class AccountSync {
+        final String account;
+        final SynthesisBatch synthesis;
+        final SyncEngine engine;
+        final PollAlarm alarm;
+        final long started = System.currentTimeMillis();
+
+        AccountSync(final String account) {
+            this.account = account;
+            StateStore accountState = Helper.getAccountState(state, account);
+            synthesis = new SynthesisBatch(smsTransport, batchSynthesis, metrics, account);
+            // remember who each sender talked to, so the reply goes out the same way
+            SmsSynthesizer synthesizer = new SmsSynthesizer() {
+                @Override
+                public void add(String address, String text, long date) {
+                    routes.put(numbers.normalize(address), account);
+                    synthesis.add(address, text, date);
+                }
+
+                @Override
+                public void flush() {
+                    synthesis.flush();
+                }
+            };
+            if (fingerprints != null)
+                synthesizer = fingerprints.filter(synthesizer);
+            engine = new SyncEngine(config,
+            Helper.getVoiceTransport(),
+            new CredentialCache(BabelService.this, account, accountState),
+            accountState,
+            store,
+            synthesizer,
+            new OutboxDatabase(BabelService.this, account),
+            numbers);
+            engine.setStageListener(metrics.scope(account));
+            engine.setKeepAwake(Helper.getWakeWindow(BabelService.this));
+            alarm = new PollAlarm(BabelService.this, account, config.refreshLatency);
+            engine.setPollAlarm(alarm);
+            engine.setNotificationsConnected(connected);
+        }
+
+        void dump(PrintWriter writer) {
+            long sent = engine.getSentCount();
+            long received = synthesis.messages.get();
+            double minutes = Math.max(1, System.currentTimeMillis() - started) / 60000.0;
+            writer.println("account " + account + ":");
+            writer.println("  sent=" + sent + String.format(" (%.1f/min)", sent / minutes)
+            + " received=" + received + String.format(" (%.1f/min)", received / minutes));
+            engine.dump(writer);
+            synthesis.dump(writer);
+        }
+    }
+
     private ISms smsTransport;
+    // whether the middleware has synthesizeMessageBatch
+    private boolean batchSynthesis;
     private SharedPreferences settings;
+    private JournaledStateStore state;
+    private SyncEngine.Config config;
+    private MessageStore store;
+    private FingerprintIndex fingerprints;
+    // every account, the routes and the fingerprints agree on what a number looks like
+    private NumberNormalizer numbers;
+    private long refreshLatency;
+    // in the order they were turned on; the first one sends anything
+    // that has no route. replaced, never changed, so any thread can read it.
+    private volatile Map<String, AccountSync> accounts = new LinkedHashMap<String, AccountSync>();
+    // last account each address was heard from, least recently used first
+    private final Map<String, String> routes = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ROUTES;
+        }
+    });
+    // everything here shows up in
+    // adb shell dumpsys activity service org.cyanogenmod.babel/.BabelService
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Histogram clearNotificationsTime = metrics.histogram("clear notifications");
+    private final AtomicLong notifications = metrics.counter("notifications");
+    private final AtomicLong fastHandoffs = metrics.counter("fast handoffs");
+    private final AtomicLong serviceHandoffs = metrics.counter("service handoffs");
+    // journals outgoing sends, whichever way they reached the service
+    private final ExecutorService handoff = Executors.newSingleThreadExecutor();
+    // set fast_handoff to false to send everything the startService way.
+    // the two paths land in the "handoff fast" and "handoff service" histograms.
+    private boolean fastHandoff;
 
     // check which accessibility services are enabled
     private Set<ComponentName> getEnabledServicesFromSettings() {
@@ -107,27 +219,232 @@ public class BabelService extends AccessibilityService {
             Class sm = Class.forName("android.os.ServiceManager");
             Method getService = sm.getMethod("getService", String.class);
             smsTransport = ISms.Stub.asInterface((IBinder)getService.invoke(null, "isms"));
+
+            Class sp = Class.forName("android.os.SystemProperties");
+            Method getBoolean = sp.getMethod("getBoolean", String.class, boolean.class);
+            batchSynthesis = (Boolean)getBoolean.invoke(null, SynthesisBatch.BATCH_PROPERTY, false);
         }
         catch (Exception e) {
             Log.e(LOGTAG, "register error", e);
         }
     }
 
+    // refill the fingerprint index from the sms provider, in one pass over it.
+    // inserts and synthesis wait until it's done. the rebuild starts here,
+    // before anything can look at the index, so nothing reaches the table
+    // the rebuild is about to replace.
+    private void rebuildFingerprints() {
+        try {
+            fingerprints.startRebuild();
+        }
+        catch (Exception e) {
+            Log.e(LOGTAG, "Error starting fingerprint index rebuild", e);
+            return;
+        }
+        new Thread("BabelFingerprints") {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                Cursor c = null;
+                try {
+                    c = getContentResolver().query(Uri.parse("content://sms"), new String[] { "address", "type", "date", "date_sent", "body" }, "type IN (1, 2)", null, null);
+                    if (c != null) {
+                        while (c.moveToNext()) {
+                            // a received sms is dated when the phone got it, and only
+                            // date_sent has the google voice timestamp it was synthesized with
+                            long date = c.getLong(2);
+                            if (c.getInt(1) == SyncProcessor.PROVIDER_INCOMING_SMS && c.getLong(3) > 0)
+                                date = c.getLong(3);
+                            fingerprints.addExisting(numbers.normalize(c.getString(0)), date, c.getString(4));
+                        }
+                    }
+                    Log.i(LOGTAG, "Rebuilt fingerprint index: " + fingerprints.size() + " messages in " + (System.currentTimeMillis() - start) + "ms");
+                }
+                catch (Exception e) {
+                    Log.e(LOGTAG, "Error rebuilding fingerprint index", e);
+                }
+                finally {
+                    if (c != null)
+                        c.close();
+                    fingerprints.finishRebuild();
+                }
+            }
+        }.start();
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
 
         settings = getSharedPreferences("settings", MODE_PRIVATE);
+        state = Helper.getState(this);
+        numbers = new NumberNormalizer(settings.getInt("number_cache", DEFAULT_NUMBER_CACHE));
 
         registerSmsMiddleware();
         clearGoogleVoiceNotifications();
+
+        // skip anything that is already in the provider, in case the sync
+        // watermark got lost and the history comes around again.
+        // the provider and the index are shared by all the accounts.
+        store = new MessageBatch(getContentResolver(), settings.getInt("insert_batch", DEFAULT_INSERT_BATCH), metrics);
+        try {
+            fingerprints = new FingerprintIndex(new File(getFilesDir(), "fingerprints"));
+            if (fingerprints.isNew())
+                rebuildFingerprints();
+            store = fingerprints.filter(store);
+        }
+        catch (Exception e) {
+            Log.e(LOGTAG, "Error opening fingerprint index", e);
+        }
+
+        // all the sync and send logic lives in the engine;
+        // this service just plugs android into it, once per account.
+        config = new SyncEngine.Config();
+        config.sendWorkers = settings.getInt("send_workers", config.sendWorkers);
+        config.sendQueue = settings.getInt("send_queue", config.sendQueue);
+        config.sendAttempts = settings.getInt("send_attempts", config.sendAttempts);
+        config.sendRate = settings.getFloat("send_rate", (float)config.sendRate);
+        config.sendBurst = settings.getInt("send_burst", config.sendBurst);
+        config.refreshInterval = settings.getLong("refresh_interval", config.refreshInterval);
+        config.refreshLatency = settings.getLong("refresh_latency", config.refreshLatency);
+        config.backfillRate = settings.getInt("backfill_rate", config.backfillRate);
+        config.pollMinInterval = settings.getLong("poll_min_interval", config.pollMinInterval);
+        config.pollMaxInterval = settings.getLong("poll_max_interval", config.pollMaxInterval);
+        config.writeDepth = settings.getInt("write_depth", config.writeDepth);
+        refreshLatency = config.refreshLatency;
+        fastHandoff = settings.getBoolean("fast_handoff", true);
+        syncAccounts();
+        instance = this;
+    }
+
+    // start an engine for every account that got turned on, and stop the
+    // ones for accounts that got turned off. new engines pick up anything
+    // that didn't make it out before the service last died.
+    // starting one reads its outbox and sync state, so it's done on the
+    // handoff thread, and sends handed off after this wait for it.
+    private void syncAccounts() {
+        handoff.execute(new Runnable() {
+            @Override
+            public void run() {
+                startAccounts();
+            }
+        });
+    }
+
+    // on the handoff thread
+    private void startAccounts() {
+        List<String> wanted = Helper.getAccounts(state);
+        Map<String, AccountSync> current = accounts;
+        if (wanted.equals(new ArrayList<String>(current.keySet())))
+            return;
+
+        LinkedHashMap<String, AccountSync> updated = new LinkedHashMap<String, AccountSync>();
+        for (String account: wanted) {
+            AccountSync sync = current.get(account);
+            if (sync == null) {
+                sync = new AccountSync(account);
+                sync.engine.start();
+            }
+            updated.put(account, sync);
+        }
+        accounts = updated;
+
+        for (AccountSync sync: current.values()) {
+            if (!updated.containsKey(sync.account))
+                sync.engine.shutdown();
+        }
+    }
+
+    // the account that last heard from this address, or the first one
+    private AccountSync getRoute(String address) {
+        Map<String, AccountSync> current = accounts;
+        String account = routes.get(numbers.normalize(address));
+        if (account != null && current.containsKey(account))
+            return current.get(account);
+        if (current.isEmpty())
+            return null;
+        return current.values().iterator().next();
+    }
+
+    // the account list is in memory, and is right even before the engines are up
+    boolean hasAccounts() {
+        return !Helper.getAccounts(state).isEmpty();
+    }
+
+    boolean isFastHandoff() {
+        return fastHandoff;
+    }
+
+    // fast path from OutgoingSmsReceiver: journal the message and queue it
+    // for the send workers off the main thread, then let the broadcast go.
+    // returns false, leaving the broadcast alone, if the service is already
+    // on its way down.
+    boolean handoff(final Intent intent, final long received, final BroadcastReceiver.PendingResult result) {
+        try {
+            handoff.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handleOutgoingSms(intent, received, HANDOFF_FAST);
+                    }
+                    finally {
+                        result.finish();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            return false;
+        }
+        fastHandoffs.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        instance = null;
+        // the alarm receivers come off here, where they went on, so a
+        // problem with one can't keep the rest of the teardown from happening
+        for (AccountSync sync: accounts.values())
+            sync.alarm.unregister();
+        // after whatever is still being handed off or started,
+        // so every engine that comes up also goes down
+        handoff.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (AccountSync sync: accounts.values())
+                    sync.engine.shutdown();
+                state.flush();
+            }
+        });
+        handoff.shutdown();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        metrics.dump(writer);
+        long delivered = 0;
+        for (AccountSync sync: accounts.values()) {
+            sync.dump(writer);
+            delivered += sync.engine.getSentCount() + sync.synthesis.messages.get();
+        }
+        Helper.getVoiceTransport().dump(writer);
+        numbers.dump(writer);
+        state.dump(writer);
+        Helper.getWakeWindow(this).dump(writer, delivered);
+        if (fingerprints != null)
+            fingerprints.dump(writer);
     }
 
-    boolean connected;
+    volatile boolean connected;
 
     @Override
     public boolean onUnbind(Intent intent) {
         connected = false;
+        // poll until notifications come back
+        for (AccountSync sync: accounts.values())
+            sync.engine.setNotificationsConnected(false);
         return super.onUnbind(intent);
     }
 
@@ -137,6 +454,8 @@ public class BabelService extends AccessibilityService {
     protected void onServiceConnected (){
         super.onServiceConnected();
         connected = true;
+        for (AccountSync sync: accounts.values())
+            sync.engine.setNotificationsConnected(true);
 
         AccessibilityServiceInfo info = new AccessibilityServiceInfo();
         // We are interested in all types of accessibility events.
@@ -152,7 +471,7 @@ public class BabelService extends AccessibilityService {
 
     // parse out the intent extras from android.intent.action.NEW_OUTGOING_SMS
     // and send it off via google voice
-    void handleOutgoingSms(Intent intent) {
+    void handleOutgoingSms(Intent intent, long received, String handoff) {
         boolean multipart = intent.getBooleanExtra("multipart", false);
         String destAddr = intent.getStringExtra("destAddr");
         String scAddr = intent.getStringExtra("scAddr");
@@ -160,28 +479,33 @@ public class BabelService extends AccessibilityService {
         ArrayList<PendingIntent> sentIntents = intent.getParcelableArrayListExtra("sentIntents");
         ArrayList<PendingIntent> deliveryIntents = intent.getParcelableArrayListExtra("deliveryIntents");
 
-        onSendMultipartText(destAddr, scAddr, parts, sentIntents, deliveryIntents, multipart);
+        onSendMultipartText(destAddr, scAddr, parts, sentIntents, deliveryIntents, multipart, received, handoff);
     }
 
     @Override
     public int onStartCommand(final Intent intent, int flags, int startId) {
         super.onStartCommand(intent, flags, startId);
 
-        if (null != settings.getString("account", null)) {
+        // the activity starts us whenever the accounts change
+        syncAccounts();
+        if (hasAccounts()) {
             ensureEnabled();
         }
 
         if (intent == null)
             return START_STICKY;
 
-        // handle an outgoing sms on a background thread.
+        // journal the outgoing sms on the handoff thread, not here on the
+        // main thread, and hand it off to the send workers.
         if (intent.getAction() == "android.intent.action.NEW_OUTGOING_SMS") {
-            new Thread() {
+            serviceHandoffs.incrementAndGet();
+            final long received = intent.getLongExtra(OutgoingSmsReceiver.EXTRA_RECEIVED, System.nanoTime());
+            handoff.execute(new Runnable() {
                 @Override
                 public void run() {
-                    handleOutgoingSms(intent);
+                    handleOutgoingSms(intent, received, HANDOFF_SERVICE);
                 }
-            }.start();
+            });
         }
 
         return START_STICKY;
@@ -217,53 +541,12 @@ public class BabelService extends AccessibilityService {
         }
     }
 
-    // fetch the weirdo opaque token google voice needs...
-    void fetchRnrSe(String authToken) throws ExecutionException, InterruptedException {
-        JsonObject json = Ion.with(this)
-        .load("https://www.google.com/voice/request/user")
-        .setHeader("Authorization", "GoogleLogin auth=" + authToken)
-        .asJsonObject()
-        .get();
-
-        String rnrse = json.get("r").getAsString();
-
-        settings.edit()
-        .putString("_rns_se", rnrse)
-        .commit();
-    }
-
-    // mark an outgoing text as recently sent, so if it comes in via
-    // round trip, we ignore it.
-    PriorityQueue<String> recentSent = new PriorityQueue<String>();
-    private void addRecent(String text) {
-        while (recentSent.size() > 20)
-            recentSent.remove();
-        recentSent.add(text);
-    }
-
-    // send an outgoing sms event via google voice
-    public void onSendMultipartText(String destAddr, String scAddr, List<String> texts, final List<PendingIntent> sentIntents, final List<PendingIntent> deliveryIntents, boolean multipart) {
-        // grab the account and wacko opaque routing token thing
-        String rnrse = settings.getString("_rns_se", null);
-        String account = settings.getString("account", null);
-        String authToken;
-
-        try {
-            // grab the auth token
-            Bundle bundle = AccountManager.get(this).getAuthToken(new Account(account, "com.google"), "grandcentral", true, null, null).getResult();
-            authToken = bundle.getString(AccountManager.KEY_AUTHTOKEN);
-
-            if (rnrse == null) {
-                fetchRnrSe(authToken);
-                rnrse = settings.getString("_rns_se", null);
-            }
-        }
-        catch (Exception e) {
-            Log.e(LOGTAG, "Error fetching tokens", e);
-            fail(sentIntents);
-            return;
-        }
-
+    // send an outgoing sms event via google voice.
+    // the message goes into the outbox, which keeps trying until it goes
+    // out or runs out of attempts, and only then reports back.
+    // received is System.nanoTime() when the sms reached the app, and
+    // handoff the histogram for the time from then to the first send request.
+    public void onSendMultipartText(String destAddr, String scAddr, List<String> texts, final List<PendingIntent> sentIntents, final List<PendingIntent> deliveryIntents, boolean multipart, long received, String handoff) {
         // combine the multipart text into one string
         StringBuilder textBuilder = new StringBuilder();
         for (String text: texts) {
@@ -271,189 +554,23 @@ public class BabelService extends AccessibilityService {
         }
         String text = textBuilder.toString();
 
-        try {
-            // send it off, and note that we recently sent this message
-            // for round trip tracking
-            sendRnrSe(authToken, rnrse, destAddr, text);
-            addRecent(text);
-            success(sentIntents);
-            return;
-        }
-        catch (Exception e) {
-            Log.d(LOGTAG, "send error", e);
-        }
-
-        try {
-            // on failure, fetch info and try again
-            fetchRnrSe(authToken);
-            rnrse = settings.getString("_rns_se", null);
-            sendRnrSe(authToken, rnrse, destAddr, text);
-            addRecent(text);
-            success(sentIntents);
-        }
-        catch (Exception e) {
-            Log.d(LOGTAG, "send failure", e);
+        AccountSync sync = getRoute(destAddr);
+        if (sync == null) {
             fail(sentIntents);
-        }
-    }
-
-    // hit the google voice api to send a text
-    void sendRnrSe(String authToken, String rnrse, String number, String text) throws Exception {
-        JsonObject json = Ion.with(this)
-        .load("https://www.google.com/voice/sms/send/")
-        .setHeader("Authorization", "GoogleLogin auth=" + authToken)
-        .setBodyParameter("phoneNumber", number)
-        .setBodyParameter("sendErrorSms", "0")
-        .setBodyParameter("text", text)
-        .setBodyParameter("_rnr_se", rnrse)
-        .asJsonObject()
-        .get();
-
-        if (!json.get("ok").getAsBoolean())
-            throw new Exception(json.toString());
-    }
-
-    public static class Payload {
-        @SerializedName("messageList")
-        public ArrayList<Conversation> conversations = new ArrayList<Conversation>();
-    }
-
-    public static class Conversation {
-        @SerializedName("children")
-        public ArrayList<Message> messages = new ArrayList<Message>();
-    }
-
-    public static class Message {
-        @SerializedName("startTime")
-        public long date;
-
-        @SerializedName("phoneNumber")
-        public String phoneNumber;
-
-        @SerializedName("message")
-        public String message;
-
-        // 10 is incoming
-        // 11 is outgoing
-        @SerializedName("type")
-        int type;
-    }
-
-    private static final int VOICE_INCOMING_SMS = 10;
-    private static final int VOICE_OUTGOING_SMS = 11;
-
-    private static final int PROVIDER_INCOMING_SMS = 1;
-    private static final int PROVIDER_OUTGOING_SMS = 2;
-    // insert a message into the sms/mms provider.
-    // we do this in the case of outgoing messages
-    // that were not sent via this phone, and also on initial
-    // message sync.
-    void insertMessage(String number, String text, int type, long date) {
-        ContentValues values = new ContentValues();
-        values.put("address", number);
-        values.put("body", text);
-        values.put("type", type);
-        values.put("date", date);
-        values.put("read", 1);
-        getContentResolver().insert(Uri.parse("content://sms/sent"), values);
-    }
-
-    // refresh the messages that were on the server
-    void refreshMessages() {
-        String account = settings.getString("account", null);
-        if (account == null)
             return;
-
-        try {
-            // tokens!
-            Bundle bundle = AccountManager.get(this).getAuthToken(new Account(account, "com.google"), "grandcentral", true, null, null).getResult();
-            String authToken = bundle.getString(AccountManager.KEY_AUTHTOKEN);
-
-            Payload payload = Ion.with(this)
-            .load("https://www.google.com/voice/request/messages")
-            .setHeader("Authorization", "GoogleLogin auth=" + authToken)
-            .as(Payload.class)
-            .get();
-
-            ArrayList<Message> all = new ArrayList<Message>();
-            for (Conversation conversation: payload.conversations) {
-                for (Message message: conversation.messages)
-                    all.add(message);
+        }
+        sync.engine.send(destAddr, text, received, handoff, new Outbox.Callback() {
+            @Override
+            public void onSent() {
+                success(sentIntents);
             }
 
-            // sort by date order so the events get added in the same order
-            Collections.sort(all, new Comparator<Message>() {
-                @Override
-                public int compare(Message lhs, Message rhs) {
-                    if (lhs.date == rhs.date)
-                        return 0;
-                    if (lhs.date > rhs.date)
-                        return 1;
-                    return -1;
-                }
-            });
-
-            long timestamp = settings.getLong("timestamp", 0);
-            boolean first = timestamp == 0;
-            long max = timestamp;
-            for (Message message: all) {
-                max = Math.max(max, message.date);
-                if (message.phoneNumber == null)
-                    continue;
-                if (message.date <= timestamp)
-                    continue;
-                if (message.message == null)
-                    continue;
-
-                // on first sync, just populate the mms provider...
-                // don't send any broadcasts.
-                if (first) {
-                    int type;
-                    if (message.type == VOICE_INCOMING_SMS)
-                        type = PROVIDER_INCOMING_SMS;
-                    else if (message.type == VOICE_OUTGOING_SMS)
-                        type = PROVIDER_OUTGOING_SMS;
-                    else
-                        continue;
-                    // just populate the content provider and go
-                    insertMessage(message.phoneNumber, message.message, type, message.date);
-                    continue;
-                }
-
-                // sync up outgoing messages
-                if (message.type == VOICE_OUTGOING_SMS) {
-                    boolean found = false;
-                    for (String recent: recentSent) {
-                        if (TextUtils.equals(recent, message.message)) {
-                            recentSent.remove(message.message);
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (!found)
-                        insertMessage(message.phoneNumber, message.message, PROVIDER_OUTGOING_SMS, message.date);
-                    continue;
-                }
-
-                if (message.type != VOICE_INCOMING_SMS)
-                    continue;
-                ArrayList<String> list = new ArrayList<String>();
-                list.add(message.message);
-                try {
-                    // synthesize a BROADCAST_SMS event
-                    smsTransport.synthesizeMessages(message.phoneNumber, null, list, message.date);
-                }
-                catch (Exception e) {
-                    e.printStackTrace();;
-                }
+            @Override
+            public void onFailed() {
+                Log.d(LOGTAG, "send failure");
+                fail(sentIntents);
             }
-            settings.edit()
-            .putLong("timestamp", max)
-            .commit();
-        }
-        catch (Exception e) {
-            Log.e(LOGTAG, "Error refreshing messages", e);
-        }
+        });
     }
 
     // clear the google voice notification so the user doesn't get double notified.
@@ -461,6 +578,7 @@ public class BabelService extends AccessibilityService {
     Method cancelAllNotifications;
     int userId;
     private void clearGoogleVoiceNotifications() {
+        long start = System.nanoTime();
         try {
             if (cancelAllNotifications == null) {
                 // run this to get the internal service to populate
@@ -479,30 +597,11 @@ public class BabelService extends AccessibilityService {
         catch (Exception e) {
             Log.d(LOGTAG, "Error clearing GoogleVoice notifications", e);
         }
+        finally {
+            clearNotificationsTime.record(System.nanoTime() - start);
+        }
     }
 
-    void startRefresh() {
-        needsRefresh = true;
-
-        // if a sync is in progress, dont start another
-        if (refreshThread != null && refreshThread.isAlive())
-            return;
-
-        refreshThread = new Thread() {
-            @Override
-            public void run() {
-                while (needsRefresh) {
-                    needsRefresh = false;
-                    refreshMessages();
-                }
-            }
-        };
-
-        refreshThread.start();
-    }
-
-    boolean needsRefresh;
-    Thread refreshThread;
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
         if (event.getEventType() != AccessibilityEvent.TYPE_NOTIFICATION_STATE_CHANGED)
@@ -511,9 +610,16 @@ public class BabelService extends AccessibilityService {
         if (!Helper.GOOGLE_VOICE_PACKAGE.equals(event.getPackageName()))
             return;
 
+        notifications.incrementAndGet();
         clearGoogleVoiceNotifications();
 
-        startRefresh();
+        // the refresh follows shortly; stay up until it starts,
+        // and have a connection ready for it.
+        Helper.acquireTemporaryWakelocks(this, refreshLatency);
+        Helper.getVoiceTransport().warm();
+        // no telling which account it was for; the ones with nothing new get a 304
+        for (AccountSync sync: accounts.values())
+            sync.engine.requestRefresh();
     }
 
     @Override
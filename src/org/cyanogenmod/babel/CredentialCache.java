@@ -0,0 +1,122 @@
+package org.cyanogenmod.babel;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.os.Bundle;
+
+import org.cyanogenmod.babel.engine.Credentials;
+import org.cyanogenmod.babel.engine.StateStore;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps one account's grandcentral auth token and _rnr_se in memory so
+ * sends and refreshes don't go to AccountManager every time. Concurrent callers that find the token missing or expired
+ * share a single fetch.
+ */
+public class CredentialCache implements Credentials {
+    private static final String ACCOUNT_TYPE = "com.google";
+    private static final String AUTH_TOKEN_TYPE = "grandcentral";
+    private static final long AUTH_TOKEN_TTL = 60 * 60 * 1000;
+
+    private final Context context;
+    private final StateStore state;
+
+    private final String account;
+    private volatile String rnrse;
+
+    private String authToken;
+    private long authTokenExpires;
+    private FutureTask<String> pendingAuthToken;
+
+    // state should be the account's own slice of the state store
+    public CredentialCache(Context context, String account, StateStore state) {
+        this.context = context;
+        this.account = account;
+        this.state = state;
+        rnrse = state.get("_rns_se");
+    }
+
+    @Override
+    public String getAccount() {
+        return account;
+    }
+
+    @Override
+    public String getRnrSe() {
+        return rnrse;
+    }
+
+    @Override
+    public void setRnrSe(String rnrse) {
+        this.rnrse = rnrse;
+        state.put(Collections.singletonMap("_rns_se", rnrse));
+    }
+
+    // return the cached auth token, or fetch one if it is missing or stale.
+    // if another thread is already fetching, wait for its result instead.
+    @Override
+    public String getAuthToken() throws Exception {
+        FutureTask<String> task;
+        boolean owner = false;
+        synchronized (this) {
+            if (authToken != null && System.currentTimeMillis() < authTokenExpires)
+                return authToken;
+            if (pendingAuthToken == null) {
+                pendingAuthToken = new FutureTask<String>(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        Bundle bundle = AccountManager.get(context).getAuthToken(new Account(account, ACCOUNT_TYPE), AUTH_TOKEN_TYPE, true, null, null).getResult();
+                        return bundle.getString(AccountManager.KEY_AUTHTOKEN);
+                    }
+                });
+                owner = true;
+            }
+            task = pendingAuthToken;
+        }
+
+        if (owner)
+            task.run();
+
+        try {
+            String token = task.get();
+            if (owner) {
+                synchronized (this) {
+                    authToken = token;
+                    authTokenExpires = System.currentTimeMillis() + AUTH_TOKEN_TTL;
+                }
+            }
+            return token;
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception)e.getCause();
+            throw e;
+        }
+        finally {
+            if (owner) {
+                synchronized (this) {
+                    if (pendingAuthToken == task)
+                        pendingAuthToken = null;
+                }
+            }
+        }
+    }
+
+    // the server rejected this token; drop it here and in AccountManager
+    // so the next fetch gets a fresh one.
+    @Override
+    public void invalidateAuthToken(String token) {
+        if (token == null)
+            return;
+        synchronized (this) {
+            if (token.equals(authToken))
+                authToken = null;
+        }
+        AccountManager.get(context).invalidateAuthToken(ACCOUNT_TYPE, token);
+    }
+}
@@ -1,9 +1,21 @@
 package org.cyanogenmod.babel;
 
 import android.content.Context;
-import android.net.wifi.WifiManager;
-import android.os.Handler;
-import android.os.PowerManager;
+import android.content.SharedPreferences;
+
+import android.text.TextUtils;
+
+import org.cyanogenmod.babel.engine.HttpVoiceTransport;
+import org.cyanogenmod.babel.engine.JournaledStateStore;
+import org.cyanogenmod.babel.engine.PrefixedStateStore;
+import org.cyanogenmod.babel.engine.StateStore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 
 /**
  * Created by koush on 6/23/13.
@@ -11,27 +23,123 @@ import android.os.PowerManager;
 public class Helper {
     public static final String GOOGLE_VOICE_PACKAGE = "com.google.android.apps.googlevoice";
 
-    static PowerManager.WakeLock wakeLock;
-    static WifiManager.WifiLock wifiLock;
-    public static void acquireTemporaryWakelocks(Context context, long timeout) {
-        if (wakeLock == null) {
-            PowerManager pm = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
-            wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP | PowerManager.ON_AFTER_RELEASE, "PushSMS");
+    // one client for all google voice requests in the process,
+    // so the service and receivers share pooled connections.
+    static HttpVoiceTransport voiceTransport;
+    public static synchronized HttpVoiceTransport getVoiceTransport() {
+        if (voiceTransport == null)
+            voiceTransport = new HttpVoiceTransport(HttpVoiceTransport.GOOGLE_VOICE);
+        return voiceTransport;
+    }
+
+    // longest a state change can go unsaved
+    private static final long STATE_COMMIT_DELAY = 500;
+    // what used to live in the settings preferences
+    private static final String[] STATE_KEYS = new String[] {
+        "account", "_rns_se", "timestamp", "messages_etag", "messages_last_modified", "conversations",
+        "backfill_until", "backfill_page", "backfill_row",
+    };
+    // what each account keeps in its own slice of the state
+    private static final String[] ACCOUNT_KEYS = new String[] {
+        "_rns_se", "timestamp", "messages_etag", "messages_last_modified", "conversations",
+        "backfill_until", "backfill_page", "backfill_row",
+    };
+
+    // account and sync state, shared by the service, the activity and the receivers.
+    static JournaledStateStore state;
+    public static synchronized JournaledStateStore getState(Context context) {
+        if (state != null)
+            return state;
+        state = new JournaledStateStore(new File(context.getFilesDir(), "state.log"), STATE_COMMIT_DELAY);
+        if (state.isEmpty())
+            migratePreferences(context);
+        migrateAccount(context);
+        return state;
+    }
+
+    // first run with the log; bring over anything from the preferences
+    private static void migratePreferences(Context context) {
+        SharedPreferences settings = context.getSharedPreferences("settings", Context.MODE_PRIVATE);
+        HashMap<String, String> migrated = new HashMap<String, String>();
+        SharedPreferences.Editor editor = settings.edit();
+        for (String key: STATE_KEYS) {
+            // older versions stored some of these as longs
+            Object value = settings.getAll().get(key);
+            if (value == null)
+                continue;
+            migrated.put(key, value.toString());
+            editor.remove(key);
+        }
+        if (!migrated.isEmpty()) {
+            state.put(migrated);
+            state.flush();
+            editor.commit();
+        }
+    }
+
+    // older versions had a single "account" with its state at the top level;
+    // make it the first entry in the account list, with its state and outbox
+    // moved over to where that account's engine looks for them.
+    private static void migrateAccount(Context context) {
+        String account = state.get("account");
+        if (account == null)
+            return;
+
+        File outbox = context.getDatabasePath(OutboxDatabase.LEGACY_NAME);
+        if (outbox.exists()) {
+            File renamed = context.getDatabasePath(OutboxDatabase.getName(account));
+            outbox.renameTo(renamed);
+            new File(outbox.getPath() + "-journal").renameTo(new File(renamed.getPath() + "-journal"));
         }
-        wakeLock.acquire(timeout);
 
-        if (wifiLock == null) {
-            WifiManager wm = (WifiManager)context.getSystemService(Context.WIFI_SERVICE);
-            wifiLock = wm.createWifiLock("PushSMS");
+        HashMap<String, String> migrated = new HashMap<String, String>();
+        for (String key: ACCOUNT_KEYS) {
+            String value = state.get(key);
+            if (value == null)
+                continue;
+            migrated.put(getAccountPrefix(account) + key, value);
+            migrated.put(key, null);
         }
+        migrated.put("account", null);
+        migrated.put("accounts", account);
+        state.put(migrated);
+        state.flush();
+    }
+
+    // every account that syncs, in the order they were turned on
+    public static List<String> getAccounts(StateStore state) {
+        String accounts = state.get("accounts");
+        if (TextUtils.isEmpty(accounts))
+            return new ArrayList<String>();
+        return new ArrayList<String>(Arrays.asList(accounts.split(",")));
+    }
 
+    public static void setAccounts(StateStore state, List<String> accounts) {
+        state.put(Collections.singletonMap("accounts", accounts.isEmpty() ? null : TextUtils.join(",", accounts)));
+    }
+
+    private static String getAccountPrefix(String account) {
+        return account + "/";
+    }
 
-        wifiLock.acquire();
-        new Handler().postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                wifiLock.release();
-            }
-        }, timeout);
+    // the account's own watermark, validators, cursors and _rnr_se
+    public static StateStore getAccountState(StateStore state, String account) {
+        return new PrefixedStateStore(state, getAccountPrefix(account));
+    }
+
+    // how long the wake window stays open after the last burst ends
+    private static final long WAKE_LINGER = 2000;
+
+    static WakeWindow wakeWindow;
+    public static synchronized WakeWindow getWakeWindow(Context context) {
+        if (wakeWindow == null)
+            wakeWindow = new WakeWindow(context.getApplicationContext(), "PushSMS", WAKE_LINGER);
+        return wakeWindow;
+    }
+
+    // keep the device and wifi up for at least timeout ms,
+    // sharing the window with any sync or send in progress.
+    public static void acquireTemporaryWakelocks(Context context, long timeout) {
+        getWakeWindow(context).acquire(timeout);
     }
 }
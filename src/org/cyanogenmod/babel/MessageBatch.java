@@ -0,0 +1,62 @@
+package org.cyanogenmod.babel;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+import org.cyanogenmod.babel.engine.MessageStore;
+import org.cyanogenmod.babel.engine.Metrics;
+
+import java.util.ArrayList;
+
+/**
+ * Collects rows for the sms provider and writes them in chunks,
+ * one bulkInsert (one binder call) per chunk instead of one insert per message.
+ */
+public class MessageBatch implements MessageStore {
+    private static final Uri SMS_SENT = Uri.parse("content://sms/sent");
+
+    private final ContentResolver resolver;
+    private final int batchSize;
+    private final ArrayList<ContentValues> pending;
+    private final Metrics.Histogram insertTime;
+    private int written;
+
+    // insert times land in the "insert" histogram, one sample per bulkInsert
+    public MessageBatch(ContentResolver resolver, int batchSize, Metrics metrics) {
+        this.resolver = resolver;
+        this.batchSize = Math.max(1, batchSize);
+        pending = new ArrayList<ContentValues>(this.batchSize);
+        insertTime = metrics.histogram("insert");
+    }
+
+    @Override
+    public synchronized void add(String number, String text, int type, long date) {
+        ContentValues values = new ContentValues();
+        values.put("address", number);
+        values.put("body", text);
+        values.put("type", type);
+        values.put("date", date);
+        values.put("read", 1);
+        pending.add(values);
+
+        if (pending.size() >= batchSize)
+            flush();
+    }
+
+    // write out anything still buffered.
+    @Override
+    public synchronized void flush() {
+        if (pending.isEmpty())
+            return;
+        ContentValues[] rows = pending.toArray(new ContentValues[pending.size()]);
+        pending.clear();
+        long start = System.nanoTime();
+        written += resolver.bulkInsert(SMS_SENT, rows);
+        insertTime.record(System.nanoTime() - start);
+    }
+
+    public synchronized int getWritten() {
+        return written;
+    }
+}
@@ -0,0 +1,91 @@
+package org.cyanogenmod.babel;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import org.cyanogenmod.babel.engine.Outbox;
+import org.cyanogenmod.babel.engine.OutboxStore;
+
+import java.util.ArrayList;
+
+/**
+ * Journal of outgoing messages that have not been delivered to google voice yet.
+ * One database per account.
+ */
+public class OutboxDatabase extends SQLiteOpenHelper implements OutboxStore {
+    // from before there were several accounts
+    static final String LEGACY_NAME = "outbox.db";
+    private static final int VERSION = 1;
+    private static final String TABLE = "outbox";
+
+    public OutboxDatabase(Context context, String account) {
+        super(context, getName(account), null, VERSION);
+    }
+
+    static String getName(String account) {
+        return "outbox-" + account + ".db";
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " (" +
+        "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+        "address TEXT, " +
+        "body TEXT, " +
+        "created INTEGER, " +
+        "attempts INTEGER, " +
+        "next_attempt INTEGER)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    @Override
+    public long insert(String address, String body, long created) {
+        ContentValues values = new ContentValues();
+        values.put("address", address);
+        values.put("body", body);
+        values.put("created", created);
+        values.put("attempts", 0);
+        values.put("next_attempt", created);
+        return getWritableDatabase().insert(TABLE, null, values);
+    }
+
+    @Override
+    public void update(long id, int attempts, long nextAttempt) {
+        ContentValues values = new ContentValues();
+        values.put("attempts", attempts);
+        values.put("next_attempt", nextAttempt);
+        getWritableDatabase().update(TABLE, values, "_id = ?", new String[] { String.valueOf(id) });
+    }
+
+    @Override
+    public void delete(long id) {
+        getWritableDatabase().delete(TABLE, "_id = ?", new String[] { String.valueOf(id) });
+    }
+
+    // everything still waiting to go out, oldest first
+    @Override
+    public ArrayList<Outbox.Entry> getAll() {
+        ArrayList<Outbox.Entry> entries = new ArrayList<Outbox.Entry>();
+        Cursor cursor = getReadableDatabase().query(TABLE, new String[] { "_id", "address", "body", "created", "attempts", "next_attempt" }, null, null, null, null, "_id");
+        if (cursor == null)
+            return entries;
+        try {
+            while (cursor.moveToNext()) {
+                Outbox.Entry entry = new Outbox.Entry(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getLong(3));
+                entry.attempts = cursor.getInt(4);
+                entry.nextAttempt = cursor.getLong(5);
+                entries.add(entry);
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return entries;
+    }
+}
@@ -10,15 +10,71 @@ import android.util.Log;
  * Created by koush on 7/7/13.
  */
 public class OutgoingSmsReceiver extends BroadcastReceiver {
+    private static final long HANDOFF_TIMEOUT = 5000;
+    // System.nanoTime() when the broadcast came in
+    static final String EXTRA_RECEIVED = "org.cyanogenmod.babel.RECEIVED";
+
     @Override
-    public void onReceive(Context context, Intent intent) {
-        if (context.getSharedPreferences("settings", Context.MODE_PRIVATE).getString("account", null) == null)
+    public void onReceive(final Context context, final Intent intent) {
+        final long received = System.nanoTime();
+
+        // with the service up, its account list is already in memory.
+        // without it, the state log would have to be loaded to find out, which
+        // doesn't belong on the broadcast thread; that happens off it, with
+        // the broadcast held open until it's decided.
+        BabelService service = BabelService.getInstance();
+        if (service == null) {
+            final PendingResult result = goAsync();
+            new Thread("BabelOutgoing") {
+                @Override
+                public void run() {
+                    try {
+                        if (Helper.getAccounts(Helper.getState(context)).isEmpty())
+                            return;
+                        prepare(context);
+                        result.abortBroadcast();
+                        result.setResultCode(Activity.RESULT_CANCELED);
+                        startService(context, intent, received);
+                    }
+                    finally {
+                        result.finish();
+                    }
+                }
+            }.start();
             return;
+        }
 
+        if (!service.hasAccounts())
+            return;
+
+        prepare(context);
         abortBroadcast();
         setResultCode(Activity.RESULT_CANCELED);
 
+        // fast path: the running service journals it on its handoff thread,
+        // and the broadcast stays open until that's done.
+        if (service.isFastHandoff()) {
+            PendingResult result = goAsync();
+            if (service.handoff(intent, received, result))
+                return;
+            // it was being destroyed; start a new one the usual way
+            startService(context, intent, received);
+            result.finish();
+            return;
+        }
+
+        startService(context, intent, received);
+    }
+
+    // a send is coming; stay awake and get the connection going while it's handed off
+    private static void prepare(Context context) {
+        Helper.acquireTemporaryWakelocks(context, HANDOFF_TIMEOUT);
+        Helper.getVoiceTransport().warm();
+    }
+
+    private static void startService(Context context, Intent intent, long received) {
         intent.setClass(context, BabelService.class);
+        intent.putExtra(EXTRA_RECEIVED, received);
         context.startService(intent);
     }
 }
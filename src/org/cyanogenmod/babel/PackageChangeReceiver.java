@@ -32,6 +32,11 @@ public class PackageChangeReceiver extends BroadcastReceiver {
             pm.setComponentEnabledSetting(activity, PackageManager.COMPONENT_ENABLED_STATE_ENABLED, 0);
             pm.setComponentEnabledSetting(service, PackageManager.COMPONENT_ENABLED_STATE_ENABLED, 0);
             pm.setComponentEnabledSetting(receiver, PackageManager.COMPONENT_ENABLED_STATE_ENABLED, 0);
+
+            // start the service after a reboot so any unsent messages
+            // left in the outbox get retried.
+            if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction()))
+                context.startService(new Intent(context, BabelService.class));
         }
         catch (Exception e) {
             pm.setComponentEnabledSetting(activity, PackageManager.COMPONENT_ENABLED_STATE_DISABLED, 0);
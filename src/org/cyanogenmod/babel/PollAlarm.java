@@ -0,0 +1,95 @@
+package org.cyanogenmod.babel;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import org.cyanogenmod.babel.engine.Alarm;
+
+/**
+ * The engine's poll timer on AlarmManager, so a poll that comes due in deep
+ * sleep wakes the device rather than waiting for something else to.
+ * Each account has its own alarm, told apart by the intent data.
+ * The refresh a poll triggers starts a little later, so the device is
+ * kept up for awake ms after the alarm goes off.
+ * The receiver is only open to broadcasts from holders of a signature
+ * permission, so no other app can set off a refresh and its wakelock.
+ */
+public class PollAlarm extends BroadcastReceiver implements Alarm {
+    private static final String ACTION = "org.cyanogenmod.babel.POLL";
+    private static final String SCHEME = "babel-poll";
+    private static final String PERMISSION = "org.cyanogenmod.babel.permission.POLL";
+
+    private final Context context;
+    private final String account;
+    private final long awake;
+    private final AlarmManager alarmManager;
+    private final PendingIntent operation;
+    private Runnable task;
+    private boolean registered;
+
+    public PollAlarm(Context context, String account, long awake) {
+        // outlives whichever service or activity made it
+        context = context.getApplicationContext();
+        this.context = context;
+        this.account = account;
+        this.awake = awake;
+        alarmManager = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(ACTION, Uri.fromParts(SCHEME, account, null));
+        intent.setPackage(context.getPackageName());
+        operation = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        IntentFilter filter = new IntentFilter(ACTION);
+        filter.addDataScheme(SCHEME);
+        context.registerReceiver(this, filter, PERMISSION, null);
+        registered = true;
+    }
+
+    @Override
+    public synchronized void set(long delay, Runnable task) {
+        this.task = task;
+        // replaces the last one, since the intent is the same
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + delay, operation);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        task = null;
+        alarmManager.cancel(operation);
+        unregister();
+    }
+
+    // stop taking broadcasts. safe to call more than once, and ahead of
+    // shutdown(), so whoever is tearing things down can do it where the
+    // receiver was registered.
+    public synchronized void unregister() {
+        if (!registered)
+            return;
+        registered = false;
+        try {
+            context.unregisterReceiver(this);
+        }
+        catch (IllegalArgumentException e) {
+            // already gone; nothing left to do
+        }
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (intent.getData() == null || !account.equals(intent.getData().getSchemeSpecificPart()))
+            return;
+        Runnable task;
+        synchronized (this) {
+            task = this.task;
+        }
+        if (task == null)
+            return;
+        Helper.acquireTemporaryWakelocks(context, awake);
+        task.run();
+    }
+}
@@ -0,0 +1,128 @@
+package org.cyanogenmod.babel;
+
+import android.util.Log;
+
+import com.android.internal.telephony.ISms;
+
+import org.cyanogenmod.babel.engine.Metrics;
+import org.cyanogenmod.babel.engine.SmsSynthesizer;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Groups incoming messages by sender so each sender's messages go to
+ * the sms middleware in one synthesizeMessageBatch binder call, in the
+ * order they were added. Only middleware that says it has the batch call
+ * gets it, see BATCH_PROPERTY; everywhere else, and whenever a batch call
+ * doesn't go through, every message gets its own synthesizeMessages call.
+ * Delivery lag is how long after its google voice date a message
+ * was handed to the middleware. Each account gets its own batch, and
+ * its own histograms.
+ */
+public class SynthesisBatch implements SmsSynthesizer {
+    private static final String LOGTAG = "Babel";
+    // set to true by sms middleware that implements synthesizeMessageBatch.
+    // binder dispatches by transaction code, so on a platform without it the
+    // call would land on whatever ISms method has that code there.
+    static final String BATCH_PROPERTY = "ro.babel.synthesize_batch";
+
+    private static class Group {
+        final ArrayList<String> messages = new ArrayList<String>();
+        final ArrayList<Long> dates = new ArrayList<Long>();
+    }
+
+    private final ISms smsTransport;
+    private final String account;
+    private final LinkedHashMap<String, Group> groups = new LinkedHashMap<String, Group>();
+    // off unless the middleware advertises it, and turned off if it says no
+    private volatile boolean batchSupported;
+    private final Metrics.Histogram synthesizeTime;
+    private final Metrics.Histogram deliveryLag;
+
+    final AtomicLong messages = new AtomicLong();
+    final AtomicLong binderCalls = new AtomicLong();
+
+    public SynthesisBatch(ISms smsTransport, boolean batchSupported, Metrics metrics, String account) {
+        this.smsTransport = smsTransport;
+        this.batchSupported = batchSupported;
+        this.account = account;
+        synthesizeTime = metrics.histogram(account + " synthesize");
+        deliveryLag = metrics.histogram(account + " delivery lag");
+    }
+
+    // queue an incoming message. messages from one sender must be added in date order.
+    @Override
+    public void add(String address, String text, long date) {
+        Group group = groups.get(address);
+        if (group == null) {
+            group = new Group();
+            groups.put(address, group);
+        }
+        group.messages.add(text);
+        group.dates.add(date);
+    }
+
+    // synthesize everything queued so far.
+    @Override
+    public void flush() {
+        for (Map.Entry<String, Group> entry: groups.entrySet())
+            deliver(entry.getKey(), entry.getValue());
+        groups.clear();
+    }
+
+    private void deliver(String address, Group group) {
+        messages.addAndGet(group.messages.size());
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < group.dates.size(); i++)
+            deliveryLag.recordMillis(now - group.dates.get(i));
+
+        long start = System.nanoTime();
+        try {
+            synthesize(address, group);
+        }
+        finally {
+            synthesizeTime.record(System.nanoTime() - start);
+        }
+    }
+
+    private void synthesize(String address, Group group) {
+        if (batchSupported && group.messages.size() > 1) {
+            long[] dates = new long[group.dates.size()];
+            for (int i = 0; i < dates.length; i++)
+                dates[i] = group.dates.get(i);
+            try {
+                binderCalls.incrementAndGet();
+                if (smsTransport.synthesizeMessageBatch(address, null, group.messages, dates))
+                    return;
+                Log.i(LOGTAG, "synthesizeMessageBatch unsupported, falling back");
+                batchSupported = false;
+            }
+            catch (Exception e) {
+                // rather than lose the whole group, deliver them one by one
+                Log.e(LOGTAG, "Error synthesizing message batch, falling back", e);
+            }
+        }
+
+        for (int i = 0; i < group.messages.size(); i++) {
+            ArrayList<String> list = new ArrayList<String>();
+            list.add(group.messages.get(i));
+            try {
+                // synthesize a BROADCAST_SMS event
+                binderCalls.incrementAndGet();
+                smsTransport.synthesizeMessages(address, null, list, group.dates.get(i));
+            }
+            catch (Exception e) {
+                Log.e(LOGTAG, "Error synthesizing message", e);
+            }
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("sms synthesis for " + account + ": batching=" + (batchSupported ? "supported" : "unsupported"));
+        writer.println("  messages=" + messages.get() + " binder calls=" + binderCalls.get() + " (" + messages.get() + " without batching)");
+    }
+}
@@ -0,0 +1,128 @@
+package org.cyanogenmod.babel;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import org.cyanogenmod.babel.engine.KeepAwake;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A partial wakelock and a wifi lock, held while anything has the window
+ * acquired. The count is ours, not the locks': the locks are taken when
+ * the count leaves zero and let go linger ms after it gets back to zero,
+ * so bursts that follow each other closely share one window instead of
+ * flapping the locks. The wakelock also carries a timeout, so a leaked
+ * acquire can't hold the device awake forever.
+ */
+public class WakeWindow implements KeepAwake {
+    private static final long MAX_HOLD = 10 * 60 * 1000;
+
+    private final PowerManager.WakeLock wakeLock;
+    private final WifiManager.WifiLock wifiLock;
+    private final long linger;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "BabelWake");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private int count;
+    private boolean held;
+    private long heldSince;
+    private ScheduledFuture<?> pendingRelease;
+
+    private long windows;
+    private long joined;
+    private long totalHeld;
+
+    private final Runnable releaseNow = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WakeWindow.this) {
+                pendingRelease = null;
+                if (count == 0)
+                    releaseLocks();
+            }
+        }
+    };
+
+    public WakeWindow(Context context, String tag, long linger) {
+        PowerManager pm = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
+        wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+        wakeLock.setReferenceCounted(false);
+        WifiManager wm = (WifiManager)context.getSystemService(Context.WIFI_SERVICE);
+        wifiLock = wm.createWifiLock(tag);
+        wifiLock.setReferenceCounted(false);
+        this.linger = linger;
+    }
+
+    @Override
+    public synchronized void acquire() {
+        if (count++ > 0)
+            return;
+        if (pendingRelease != null) {
+            // still lingering from the last burst; keep going in the same window
+            pendingRelease.cancel(false);
+            pendingRelease = null;
+            joined++;
+            return;
+        }
+        if (held)
+            return;
+        held = true;
+        heldSince = SystemClock.elapsedRealtime();
+        windows++;
+        wakeLock.acquire(MAX_HOLD);
+        wifiLock.acquire();
+    }
+
+    @Override
+    public synchronized void release() {
+        if (count == 0)
+            return;
+        if (--count > 0)
+            return;
+        pendingRelease = scheduler.schedule(releaseNow, linger, TimeUnit.MILLISECONDS);
+    }
+
+    // hold the window for at least timeout ms
+    public void acquire(long timeout) {
+        acquire();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                release();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void releaseLocks() {
+        if (!held)
+            return;
+        held = false;
+        totalHeld += SystemClock.elapsedRealtime() - heldSince;
+        if (wakeLock.isHeld())
+            wakeLock.release();
+        if (wifiLock.isHeld())
+            wifiLock.release();
+    }
+
+    // delivered is the number of messages sent or received in that time
+    public synchronized void dump(PrintWriter writer, long delivered) {
+        long awake = totalHeld + (held ? SystemClock.elapsedRealtime() - heldSince : 0);
+        writer.println("wake window: " + (held ? "held" : "released") + " count=" + count + " linger=" + linger + "ms");
+        writer.println("  windows=" + windows + " bursts joined=" + joined + " awake=" + awake + "ms");
+        writer.println("  awake per delivered message=" + (delivered == 0 ? 0 : awake / delivered) + "ms (" + delivered + " delivered)");
+    }
+}